@@ -0,0 +1,302 @@
+package parser;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import parser.feature.FeatureFactory;
+import utils.FeatureVector;
+import utils.Utils;
+
+/**
+ * On-disk cache of the 1st order arc features of the training sentences,
+ * so that they are hashed once instead of once per epoch. The file
+ * starts with a key of everything the features depend on; a cache with
+ * another key is rebuilt.
+ *
+ * Each sentence is a record of its arcs (h = 0..n-1, m = 1..n-1, h != m).
+ * An arc is stored as its number of entries, a flag whether all values are
+ * 1.0, the ids as zigzag varint deltas (in extraction order), and the
+ * values if the flag is not set. An index of record offsets ends the file.
+ *
+ * Cached arcs are scored by summing their stored entries, one per
+ * in-between token. Without the cache, long arcs are scored with the
+ * in-between tags grouped by count (see FeatureFactory), so the scores of
+ * the two can differ in the last bits and decoding can break ties
+ * differently.
+ */
+public class ArcFeatureCache {
+
+	static final int MAGIC = 0x41524346;
+	static final long SEGMENT_SIZE = 1L << 30;		// max bytes per mapping
+
+	private MappedByteBuffer[] segs;
+	private int[] recSeg;			// segment and position of each record
+	private int[] recPos;
+
+	public static ArcFeatureCache open(String dir, TensorTransfer model,
+			TrainingSource lstTrain) throws IOException
+	{
+		String key = createKey(model, lstTrain);
+		File file = new File(dir, "arcfeats.bin");
+
+		if (!file.exists() || !key.equals(readKey(file))) {
+			System.out.println("build feature cache " + file.getPath());
+			new File(dir).mkdirs();
+			File tmp = new File(dir, "arcfeats.bin.tmp");
+			write(tmp, key, model.pipe.ff, lstTrain);
+			file.delete();
+			Utils.Assert(tmp.renameTo(file));
+		}
+		else
+			System.out.println("use feature cache " + file.getPath());
+
+		ArcFeatureCache cache = new ArcFeatureCache();
+		cache.map(file, lstTrain.size());
+		return cache;
+	}
+
+	// everything the arc features depend on besides the feature templates
+	static String createKey(TensorTransfer model, TrainingSource lstTrain)
+	{
+		Options options = model.options;
+		FeatureFactory ff = model.pipe.ff;
+
+		long sum = 17;
+		for (DependencyInstance inst : lstTrain) {
+			sum = sum * 31 + inst.lang;
+			sum = sum * 31 + inst.length;
+			for (int i = 0; i < inst.length; ++i) {
+				sum = sum * 31 + inst.postagids[i];
+				if (inst.wordVecIds != null) {
+					sum = sum * 31 + inst.wordVecIds[i];
+					if (inst.wordVecIds[i] >= 0) {
+						double[] v = ff.wv.getWordVec(inst.lang, inst.wordVecIds[i]);
+						for (int j = 0; j < v.length; ++j)
+							sum = sum * 31 + Double.doubleToLongBits(v[j]);
+					}
+				}
+				if (inst.transids != null)
+					sum = sum * 31 + inst.transids[i];
+			}
+			if (ff.typo != null) {
+				sum = sum * 31 + ff.typo.getClass(inst.lang);
+				sum = sum * 31 + ff.typo.getFamily(inst.lang);
+			}
+		}
+
+		return "direct=" + options.direct
+				+ " lexical=" + options.lexical
+				+ " label=" + options.learnLabel
+				+ " feats=" + ff.numArcFeats
+				+ " bits=" + ff.tagNumBits + "," + ff.flagBits
+				+ " classes=" + (ff.typo != null ? ff.typo.classNum : -1)
+				+ " sentences=" + lstTrain.size()
+				+ " sum=" + Long.toHexString(sum);
+	}
+
+	static String readKey(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != MAGIC)
+				return null;
+			return in.readUTF();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	static void write(File file, String key, FeatureFactory ff, TrainingSource lstTrain)
+			throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		out.writeInt(MAGIC);
+		out.writeUTF(key);
+		out.writeInt(lstTrain.size());
+		long pos = out.size();
+
+		long[] offsets = new long[lstTrain.size()];
+		FeatureVector fv = new FeatureVector(ff.numArcFeats);
+		ByteSink buf = new ByteSink();
+		for (int k = 0; k < lstTrain.size(); ++k) {
+			DependencyInstance inst = lstTrain.get(k);
+			int n = inst.length;
+			buf.size = 0;
+			for (int h = 0; h < n; ++h)
+				for (int m = 1; m < n; ++m)
+					if (h != m) {
+						fv.clear();
+						ff.createArcFeatures(inst, h, m, fv);
+						buf.writeArc(fv);
+					}
+			offsets[k] = pos;
+			out.write(buf.bytes, 0, buf.size);
+			pos += buf.size;
+		}
+
+		for (int k = 0; k < lstTrain.size(); ++k)
+			out.writeLong(offsets[k]);
+		out.writeLong(pos);
+		out.close();
+	}
+
+	private void map(File file, int N) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		long length = raf.length();
+		raf.seek(length - 8);
+		long indexPos = raf.readLong();
+		Utils.Assert(indexPos + 8L * N + 8 == length);
+		FileChannel channel = raf.getChannel();
+		MappedByteBuffer index = channel.map(MapMode.READ_ONLY, indexPos, 8L * N);
+		long[] offsets = new long[N + 1];
+		for (int k = 0; k < N; ++k)
+			offsets[k] = index.getLong(8 * k);
+		offsets[N] = indexPos;
+
+		// records never straddle two mappings
+		List<MappedByteBuffer> maps = new ArrayList<MappedByteBuffer>();
+		recSeg = new int[N];
+		recPos = new int[N];
+		int k = 0;
+		while (k < N) {
+			long st = offsets[k];
+			int e = k;
+			while (e < N && offsets[e + 1] - st <= SEGMENT_SIZE)
+				++e;
+			Utils.Assert(e > k);
+			for (int i = k; i < e; ++i) {
+				recSeg[i] = maps.size();
+				recPos[i] = (int) (offsets[i] - st);
+			}
+			maps.add(channel.map(MapMode.READ_ONLY, st, offsets[e] - st));
+			k = e;
+		}
+		segs = maps.toArray(new MappedByteBuffer[maps.size()]);
+		raf.close();
+	}
+
+	/**
+	 * Appends the arc features of sentence k (of length n) to fv, and sets
+	 * the [start, end) range of each arc h*n+m.
+	 */
+	public void read(int k, int n, FeatureVector fv, int[] start, int[] end)
+	{
+		MappedByteBuffer seg = segs[recSeg[k]];
+		int[] p = new int[] { recPos[k] };
+		for (int h = 0; h < n; ++h)
+			for (int m = 1; m < n; ++m)
+				if (h != m) {
+					int id = h * n + m;
+					int size = readVarint(seg, p);
+					boolean ones = seg.get(p[0]++) == 0;
+					start[id] = fv.size();
+					int x = 0;
+					if (ones) {
+						for (int i = 0; i < size; ++i) {
+							x += unzigzag(readVarint(seg, p));
+							fv.addEntry(x);
+						}
+					}
+					else {
+						int q = p[0];
+						for (int i = 0; i < size; ++i)
+							readVarint(seg, p);
+						int vp = p[0];
+						p[0] = q;
+						for (int i = 0; i < size; ++i) {
+							x += unzigzag(readVarint(seg, p));
+							fv.addEntry(x, seg.getDouble(vp));
+							vp += 8;
+						}
+						p[0] = vp;
+					}
+					end[id] = fv.size();
+				}
+	}
+
+	static int readVarint(MappedByteBuffer seg, int[] p)
+	{
+		int pos = p[0];
+		int b = seg.get(pos++);
+		int v = b & 0x7f;
+		for (int shift = 7; b < 0; shift += 7) {
+			b = seg.get(pos++);
+			v |= (b & 0x7f) << shift;
+		}
+		p[0] = pos;
+		return v;
+	}
+
+	static int unzigzag(int v)
+	{
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
+
+class ByteSink {
+	byte[] bytes = new byte[1 << 16];
+	int size = 0;
+
+	void writeArc(FeatureVector fv)
+	{
+		int L = fv.size();
+		boolean ones = true;
+		for (int i = 0; i < L; ++i)
+			if (fv.value(i) != 1.0) {
+				ones = false;
+				break;
+			}
+
+		writeVarint(L);
+		ensure(1);
+		bytes[size++] = (byte) (ones ? 0 : 1);
+		int prev = 0;
+		for (int i = 0; i < L; ++i) {
+			int d = fv.x(i) - prev;
+			writeVarint((d << 1) ^ (d >> 31));
+			prev = fv.x(i);
+		}
+		if (!ones) {
+			ensure(8 * L);
+			for (int i = 0; i < L; ++i) {
+				long v = Double.doubleToRawLongBits(fv.value(i));
+				for (int j = 56; j >= 0; j -= 8)
+					bytes[size++] = (byte) (v >>> j);
+			}
+		}
+	}
+
+	void writeVarint(int v)
+	{
+		ensure(5);
+		while ((v & ~0x7f) != 0) {
+			bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		bytes[size++] = (byte) v;
+	}
+
+	void ensure(int k)
+	{
+		if (size + k > bytes.length) {
+			byte[] b = new byte[Math.max(bytes.length * 2, size + k)];
+			System.arraycopy(bytes, 0, b, 0, size);
+			bytes = b;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package parser;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * First-order arc filter run before the full model. It is a local
+ * log-linear model p(h | m) over a few delexicalized templates (POS pair,
+ * direction and distance, neighbouring POS), hashed into one weight array
+ * and trained with averaged SGD. An arc survives if it is among the top
+ * pruningK heads of its modifier and p(h | m) >= pruningCoeff * max p.
+ */
+public class BasicArcPruner implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int BITS = 20;			// log2 of the number of weights
+	static final int NUM_TEMPLATES = 8;
+	static final int EPOCHS = 5;
+	static final double LEARNING_RATE = 0.1;
+
+	Options options;
+	double[] w = new double[1 << BITS];
+
+	// gold arcs seen / kept and arcs kept, since the last resetStats()
+	private transient long numGold, numGoldKept, numKept, numTokens;
+
+	public BasicArcPruner(Options options) {
+		this.options = options;
+	}
+
+	public void train(TrainingSource lstTrain) {
+
+		// averaged SGD: avg = w - u / c
+		double[] u = new double[w.length];
+		long c = 1;
+
+		int[] feats = new int[0];
+		double[] scores = new double[0];
+		for (int iIter = 0; iIter < EPOCHS; ++iIter) {
+			double loss = 0.0;
+			for (DependencyInstance inst : lstTrain) {
+				int n = inst.length;
+				if (feats.length < n * n * NUM_TEMPLATES) {
+					feats = new int[n * n * NUM_TEMPLATES];
+					scores = new double[n * n];
+				}
+				extractFeatures(inst, feats);
+
+				for (int m = 1; m < n; ++m) {
+					double max = Double.NEGATIVE_INFINITY;
+					for (int h = 0; h < n; ++h)
+						if (h != m) {
+							scores[h] = score(feats, h * n + m);
+							max = Math.max(max, scores[h]);
+						}
+					double z = 0.0;
+					for (int h = 0; h < n; ++h)
+						if (h != m) {
+							scores[h] = Math.exp(scores[h] - max);
+							z += scores[h];
+						}
+
+					int gh = inst.heads[m];
+					loss -= Math.log(scores[gh] / z);
+					for (int h = 0; h < n; ++h)
+						if (h != m) {
+							double g = ((h == gh ? 1.0 : 0.0) - scores[h] / z) * LEARNING_RATE;
+							int off = (h * n + m) * NUM_TEMPLATES;
+							for (int k = 0; k < NUM_TEMPLATES; ++k) {
+								w[feats[off + k]] += g;
+								u[feats[off + k]] += c * g;
+							}
+						}
+					++c;
+				}
+			}
+			System.out.printf("  Pruner iter %d\tloss=%.4f%n", iIter + 1, loss);
+		}
+
+		for (int i = 0; i < w.length; ++i)
+			w[i] -= u[i] / c;
+	}
+
+	/**
+	 * Marks the pruned arcs of inst in isPruned[h*n+m] (m > 0, h != m) and
+	 * returns the number of arcs kept. Each modifier keeps at least its best
+	 * head. The gold heads of inst are used for the recall statistics only.
+	 */
+	public int prune(DependencyInstance inst, boolean[] isPruned) {
+		int n = inst.length;
+		int[] feats = new int[n * n * NUM_TEMPLATES];
+		extractFeatures(inst, feats);
+
+		double logCoeff = Math.log(options.pruningCoeff);
+		double[] scores = new double[n];
+		double[] sorted = new double[n];
+		int kept = 0, goldKept = 0;
+		for (int m = 1; m < n; ++m) {
+			int k = 0;
+			for (int h = 0; h < n; ++h)
+				if (h != m) {
+					scores[h] = score(feats, h * n + m);
+					sorted[k++] = scores[h];
+				}
+			Arrays.sort(sorted, 0, k);
+			double threshold = Math.max(sorted[Math.max(k - options.pruningK, 0)],
+					sorted[k - 1] + logCoeff);
+
+			isPruned[m * n + m] = true;
+			for (int h = 0; h < n; ++h)
+				if (h != m) {
+					isPruned[h * n + m] = scores[h] < threshold;
+					if (!isPruned[h * n + m]) {
+						++kept;
+						if (h == inst.heads[m])
+							++goldKept;
+					}
+				}
+		}
+		addStats(n - 1, goldKept, kept);
+		return kept;
+	}
+
+	private synchronized void addStats(int gold, int goldKept, int kept) {
+		numGold += gold;
+		numGoldKept += goldKept;
+		numKept += kept;
+		numTokens += gold;
+	}
+
+	public synchronized void resetStats() {
+		numGold = numGoldKept = numKept = numTokens = 0;
+	}
+
+	public synchronized void printStats() {
+		System.out.printf("  Pruning: recall=%.6f\tarcs/token=%.2f%n",
+				numGoldKept / (numGold + 1e-30), numKept / (numTokens + 1e-30));
+	}
+
+	private double score(int[] feats, int arc) {
+		int off = arc * NUM_TEMPLATES;
+		double s = 0.0;
+		for (int k = 0; k < NUM_TEMPLATES; ++k)
+			s += w[feats[off + k]];
+		return s;
+	}
+
+	// weight ids of arc h->m at feats[(h*n+m)*NUM_TEMPLATES]
+	private void extractFeatures(DependencyInstance inst, int[] feats) {
+		int n = inst.length;
+		for (int h = 0; h < n; ++h)
+			for (int m = 1; m < n; ++m)
+				if (h != m) {
+					int off = (h * n + m) * NUM_TEMPLATES;
+					long hp = pos(inst, h), mp = pos(inst, m);
+					long d = binDist(h - m);
+					feats[off] = hash(0, hp, mp, d, 0);
+					feats[off + 1] = hash(1, hp, mp, 0, 0);
+					feats[off + 2] = hash(2, hp, d, 0, 0);
+					feats[off + 3] = hash(3, mp, d, 0, 0);
+					feats[off + 4] = hash(4, hp, pos(inst, h + 1), pos(inst, m - 1), mp);
+					feats[off + 5] = hash(5, pos(inst, h - 1), hp, mp, pos(inst, m + 1));
+					feats[off + 6] = hash(6, hp, pos(inst, h + 1), mp, d);
+					feats[off + 7] = hash(7, d, 0, 0, 0);
+				}
+	}
+
+	// 0 outside the sentence, 1 for an unknown tag
+	private long pos(DependencyInstance inst, int i) {
+		return i < 0 || i >= inst.length ? 0 : inst.postagids[i] + 2;
+	}
+
+	// direction and distance 1, 2, 3, 4, 5, 6-10, >10
+	private long binDist(int d) {
+		int a = Math.abs(d);
+		int b = a <= 5 ? a : a <= 10 ? 6 : 7;
+		return d > 0 ? b : b + 8;
+	}
+
+	private int hash(long t, long a, long b, long c, long d) {
+		long code = (t << 56) | (a << 42) | (b << 28) | (c << 14) | d;
+		return (int) ((code * 0x9E3779B97F4A7C15L) >>> (64 - BITS));
+	}
+}
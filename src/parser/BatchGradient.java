@@ -0,0 +1,26 @@
+package parser;
+
+import parser.tensor.ParameterNode;
+import utils.FeatureVector;
+
+public class BatchGradient {
+	
+	public FeatureVector dFV;		// sparse gradient of the traditional features
+	public ParameterNode pn;		// shares the tensor parameters, keeps its own dFV
+	public double loss;
+	
+	public BatchGradient(Parameters parameters) {
+		dFV = new FeatureVector(parameters.size);
+		pn = parameters.pn.createGradientNode();
+		loss = 0.0;
+	}
+	
+	// append the gradient of g after this one; g is cleared
+	public void merge(BatchGradient g) {
+		dFV.addEntries(g.dFV);
+		g.dFV.clear();
+		pn.mergeGradient(g.pn);
+		loss += g.loss;
+		g.loss = 0.0;
+	}
+}
@@ -0,0 +1,221 @@
+package parser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import parser.io.Corpus;
+import utils.DictionarySet;
+import utils.Utils;
+
+/**
+ * The training treebanks converted to ids, so that a run with the same
+ * data skips parsing, dictionary counting and setInstIds. The file starts
+ * with a key of the treebank files and of the options the ids depend on,
+ * and a snapshot of the final DictionarySet the ids refer to; a file with
+ * another key is rebuilt. Then follow int columns, each mapped on load:
+ * the language and token offset of each sentence, and the postagids,
+ * deplbids, formids, heads, wordVecIds and transids of all tokens.
+ */
+public class BinaryCorpus {
+
+	static final int MAGIC = 0x42435250;
+	static final int NUM_COLUMNS = 6;
+
+	DictionarySet dictionaries;		// the snapshot the ids refer to
+	int numSents, numTokens;
+	IntBuffer lang, start;
+	IntBuffer[] columns;			// postagids, deplbids, formids, heads, wordVecIds, transids
+
+	static File getFile(String dir)
+	{
+		return new File(dir, "corpus.bin");
+	}
+
+	/**
+	 * The binary corpus in dir, or null if there is none for these files
+	 * and options.
+	 */
+	public static BinaryCorpus open(String dir, DependencyPipe pipe, String[] files) throws IOException
+	{
+		File file = getFile(dir);
+		if (!file.exists() || !createKey(pipe, files).equals(readKey(file)))
+			return null;
+		System.out.print("use corpus cache " + file.getPath() + " ");
+		BinaryCorpus corpus = new BinaryCorpus();
+		corpus.map(file);
+		return corpus;
+	}
+
+	/**
+	 * Writes the instances of the text corpus, with their ids looked up in
+	 * the final dictionaries of pipe.
+	 */
+	public static void write(String dir, DependencyPipe pipe, String[] files, Corpus corpus)
+			throws IOException
+	{
+		File file = getFile(dir);
+		System.out.print("build corpus cache " + file.getPath() + " ");
+		new File(dir).mkdirs();
+		File tmp = new File(dir, "corpus.bin.tmp");
+
+		int numSents = corpus.size();
+		int[] lang = new int[numSents];
+		int[] start = new int[numSents + 1];
+		DependencyInstance[] insts = new DependencyInstance[numSents];
+		for (int k = 0; k < numSents; ++k) {
+			insts[k] = corpus.get(k);
+			insts[k].setInstIds(pipe.dictionaries);
+			lang[k] = insts[k].lang;
+			start[k + 1] = start[k] + insts[k].length;
+		}
+
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		ObjectOutputStream os = new ObjectOutputStream(snapshot);
+		os.writeObject(pipe.dictionaries);
+		os.close();
+
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+		out.writeInt(MAGIC);
+		out.writeUTF(createKey(pipe, files));
+		out.writeInt(snapshot.size());
+		snapshot.writeTo(out);
+		out.writeInt(numSents);
+		out.writeInt(start[numSents]);
+		for (int k = 0; k < numSents; ++k)
+			out.writeInt(lang[k]);
+		for (int k = 0; k <= numSents; ++k)
+			out.writeInt(start[k]);
+		for (int c = 0; c < NUM_COLUMNS; ++c)
+			for (int k = 0; k < numSents; ++k) {
+				int[] col = getColumn(insts[k], c);
+				for (int i = 0; i < col.length; ++i)
+					out.writeInt(col[i]);
+			}
+		out.close();
+
+		file.delete();
+		Utils.Assert(tmp.renameTo(file));
+	}
+
+	private static int[] getColumn(DependencyInstance inst, int c)
+	{
+		switch (c) {
+			case 0: return inst.postagids;
+			case 1: return inst.deplbids;
+			case 2: return inst.formids;
+			case 3: return inst.heads;
+			case 4: return inst.wordVecIds;
+			default: return inst.transids;
+		}
+	}
+
+	// everything the ids depend on besides the code: the treebanks, and the
+	// embedding and translation files that wordVecIds and transids come from
+	static String createKey(DependencyPipe pipe, String[] files)
+	{
+		Options options = pipe.options;
+		StringBuilder sb = new StringBuilder();
+		sb.append("lexical=").append(options.lexical);
+		for (String f : files)
+			stamp(sb, f);
+		if (options.wordVectorFile != null)
+			stamp(sb, options.wordVectorFile);
+		if (pipe.wv != null) {
+			for (int l = 0; l < options.langString.length; ++l) {
+				stamp(sb, pipe.wv.constructFileName(l));
+				stamp(sb, pipe.wv.constructTransFileName(l));
+			}
+		}
+		return sb.toString();
+	}
+	
+	private static void stamp(StringBuilder sb, String f)
+	{
+		File file = new File(f);
+		sb.append(' ').append(file.getAbsolutePath())
+			.append(',').append(file.length())
+			.append(',').append(file.lastModified());
+	}
+
+	static String readKey(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != MAGIC)
+				return null;
+			return in.readUTF();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void map(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.readInt();
+			raf.readUTF();
+			byte[] snapshot = new byte[raf.readInt()];
+			raf.readFully(snapshot);
+			numSents = raf.readInt();
+			numTokens = raf.readInt();
+
+			ObjectInputStream os = new ObjectInputStream(new ByteArrayInputStream(snapshot));
+			dictionaries = (DictionarySet) os.readObject();
+			os.close();
+
+			long pos = raf.getFilePointer();
+			FileChannel channel = raf.getChannel();
+			lang = channel.map(MapMode.READ_ONLY, pos, 4L * numSents).asIntBuffer();
+			pos += 4L * numSents;
+			start = channel.map(MapMode.READ_ONLY, pos, 4L * (numSents + 1)).asIntBuffer();
+			pos += 4L * (numSents + 1);
+			columns = new IntBuffer[NUM_COLUMNS];
+			for (int c = 0; c < NUM_COLUMNS; ++c) {
+				columns[c] = channel.map(MapMode.READ_ONLY, pos, 4L * numTokens).asIntBuffer();
+				pos += 4L * numTokens;
+			}
+			Utils.Assert(pos == raf.length());
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public int size()
+	{
+		return numSents;
+	}
+
+	/**
+	 * Sentence k with its ids set, but without the strings.
+	 */
+	public DependencyInstance get(int k)
+	{
+		int st = start.get(k), n = start.get(k + 1) - st;
+		int[][] cols = new int[NUM_COLUMNS][n];
+		for (int c = 0; c < NUM_COLUMNS; ++c) {
+			IntBuffer col = columns[c];
+			for (int i = 0; i < n; ++i)
+				cols[c][i] = col.get(st + i);
+		}
+		return new DependencyInstance(lang.get(k), cols[3], cols[0], cols[1], cols[2], cols[4], cols[5]);
+	}
+}
@@ -53,6 +53,19 @@ public class DependencyInstance implements Serializable {
     	this.deplbs = deplbs;    	
     }
     
+    // an instance with its ids set but without the strings
+    public DependencyInstance(int lang, int[] heads, int[] postagids, int[] deplbids, int[] formids,
+    		int[] wordVecIds, int[] transids) {
+    	this.length = heads.length;
+    	this.lang = lang;
+    	this.heads = heads;
+    	this.postagids = postagids;
+    	this.deplbids = deplbids;
+    	this.formids = formids;
+    	this.wordVecIds = wordVecIds;
+    	this.transids = transids;
+    }
+    
     public DependencyInstance(DependencyInstance a) {
     	//this(a.forms, a.lemmas, a.cpostags, a.postags, a.feats, a.heads, a.deprels);
     	length = a.length;
@@ -10,6 +10,7 @@ import java.util.*;
 import parser.Options.Dataset;
 import parser.feature.FeatureFactory;
 import parser.feature.FeatureRepo;
+import parser.io.Corpus;
 import parser.io.DependencyReader;
 import parser.io.DependencyWriter;
 import parser.tensor.ParameterNode;
@@ -34,6 +35,8 @@ public class DependencyPipe implements Serializable {
     public transient TypologicalInfo typo;
     public transient WordVector wv;
     public transient FeatureRepo fr;
+    transient Corpus corpus;				// training treebanks, until createInstances()
+    transient BinaryCorpus binCorpus;		// or their ids, read from the corpus cache
         
     public String[] types;					// array that maps label index to label string
     public String[] poses;
@@ -87,41 +90,63 @@ public class DependencyPipe implements Serializable {
 		}
 	}
 	
+	private String[] getTrainFileNames()
+	{
+		String[] files = new String[options.langString.length];
+		for (int l = 0; l < files.length; ++l)
+			files[l] = constructTrainFileName(l);
+		return files;
+	}
+	
+	// the training treebanks, parsed on first use and shared by the passes below
+	private Corpus getTrainCorpus() throws IOException
+	{
+		if (corpus == null)
+			corpus = Corpus.readTrain(options, getTrainFileNames());
+		return corpus;
+	}
+	
+	private int numTrainInstances() throws IOException
+	{
+		return binCorpus != null ? binCorpus.size() : getTrainCorpus().size();
+	}
+	
+	// training sentence k with its ids set (after createDictionaries)
+	private DependencyInstance getTrainInstance(int k) throws IOException
+	{
+		if (binCorpus != null)
+			return binCorpus.get(k);
+		DependencyInstance inst = getTrainCorpus().get(k);
+		inst.setInstIds(dictionaries);
+		return inst;
+	}
+	
 	public void createDictionaries() throws IOException 
 	{
 		long start = System.currentTimeMillis();
 		System.out.print("Creating dictionaries ... ");
 		
-        dictionaries.setCounters();
-        
-		int cnt = 0;
-        for (int l = 0; l < options.langString.length; ++l) {
-        	//if (l == options.targetLang)
-        	//if (!options.langString[l].equals("es"))
-        	//	continue;
-        	
-        	String file = constructTrainFileName(l);
-        	System.out.print(" " + options.langString[l] + " ");
-        	
-    		DependencyReader reader = DependencyReader.createDependencyReader(options, l);
-    		reader.startReading(file);
-    		DependencyInstance inst = reader.nextInstance();
-    		
-    		while (inst != null) {
-    			inst.setInstIds(dictionaries);
-    			
-    			inst = reader.nextInstance();	
-    			++cnt;
-    			//if (options.maxNumSent != -1 && cnt >= options.maxNumSent) break;
-    		}
-    		reader.close();
-    		
-    		//if (options.maxNumSent != -1 && cnt >= options.maxNumSent) break;
-        }
-        System.out.println("Done.");
-        
-		dictionaries.filterDictionary(DEPLABEL);
-		dictionaries.closeCounters();
+		// the corpus cache holds the final dictionaries
+		String[] files = getTrainFileNames();
+		if (options.corpusCacheDir != null)
+			binCorpus = BinaryCorpus.open(options.corpusCacheDir, this, files);
+		
+		if (binCorpus != null) {
+			dictionaries = binCorpus.dictionaries;
+			dictionaries.wv = wv;
+	        System.out.println("Done.");
+		}
+		else {
+	        dictionaries.setCounters();
+	        
+	        Corpus corpus = getTrainCorpus();
+	        for (int i = 0; i < corpus.size(); ++i)
+	        	corpus.get(i).setInstIds(dictionaries);
+	        System.out.println("Done.");
+	        
+			dictionaries.filterDictionary(DEPLABEL);
+			dictionaries.closeCounters();
+		}
 		
 		ff.TOKEN_START = dictionaries.lookupIndex(POS, "#TOKEN_START#") - 1;
 		ff.TOKEN_END = dictionaries.lookupIndex(POS, "#TOKEN_END#") - 1;
@@ -144,6 +169,14 @@ public class DependencyPipe implements Serializable {
 		dictionaries.stopGrowth(DEPLABEL);
 		dictionaries.stopGrowth(POS);
 		dictionaries.stopGrowth(WORD);
+		
+		if (binCorpus == null && options.corpusCacheDir != null) {
+			BinaryCorpus.write(options.corpusCacheDir, this, files, getTrainCorpus());
+			binCorpus = BinaryCorpus.open(options.corpusCacheDir, this, files);
+			Utils.Assert(binCorpus != null);
+			corpus = null;
+			System.out.println();
+		}
 				
 		ff.tagNumBits = Math.max(Utils.log2(dictionaries.size(POS) + 1), typo.bit + 1);
 		ff.depNumBits = Utils.log2(dictionaries.size(DEPLABEL)*2 + 1);
@@ -205,37 +238,16 @@ public class DependencyPipe implements Serializable {
 		System.out.print("Creating Alphabet ... ");
 		
 		HashSet<String> posTagSet = new HashSet<String>();
-		int cnt = 0;
-        for (int l = 0; l < options.langString.length; ++l) {
-        	//if (l == options.targetLang)
-        	//if (!options.langString[l].equals("es"))
-        	//	continue;
-        	
-        	String file = constructTrainFileName(l);
-        	System.out.print(" " + options.langString[l] + " ");
-            
-    		DependencyReader reader = DependencyReader.createDependencyReader(options, l);
-    		reader.startReading(file);
-    		
-    		DependencyInstance inst = reader.nextInstance();
-    		
-    		while(inst != null) {
-    			
-    			for (int i = 0; i < inst.length; ++i) {
-    				if (inst.postags != null) posTagSet.add(inst.postags[i]);
-    			}
-    			
-    			inst.setInstIds(dictionaries);
-    			
-    		    ff.initFeatureAlphabets(inst);
-    				
-    		    inst = reader.nextInstance();
-    		    cnt++;
-    	        //if (options.maxNumSent != -1 && cnt >= options.maxNumSent) break;
-    		}
-    		reader.close();
-    		//if (options.maxNumSent != -1 && cnt >= options.maxNumSent) break;		
-        }
+		int numSents = numTrainInstances();
+		for (int k = 0; k < numSents; ++k) {
+			DependencyInstance inst = getTrainInstance(k);
+			
+			for (int i = 0; i < inst.length; ++i) {
+				posTagSet.add(inst.postags != null ? inst.postags[i] : poses[inst.postagids[i]]);
+			}
+			
+		    ff.initFeatureAlphabets(inst);
+		}
         System.out.println("Done.");
 		System.out.printf("[%d ms]%n", System.currentTimeMillis() - start);
 		
@@ -268,38 +280,11 @@ public class DependencyPipe implements Serializable {
     	System.out.print("Creating instances ... ");
     	
 		ArrayList<DependencyInstance> lt = new ArrayList<DependencyInstance>();
-		int cnt = 0;
-        for (int l = 0; l < options.langString.length; ++l) {
-        	//if (l == options.targetLang)
-        	//if (!options.langString[l].equals("es"))
-        	//	continue;
-        	
-        	String file = constructTrainFileName(l);
-        	System.out.print(" " + options.langString[l] + " ");
-            
-        	DependencyReader reader = DependencyReader.createDependencyReader(options, l);
-    		reader.startReading(file);
-
-    		DependencyInstance inst = reader.nextInstance();
-    						
-    		while(inst != null) {
-    			
-    			inst.setInstIds(dictionaries);
-    			
-    		    //createFeatures(inst);
-    			lt.add(new DependencyInstance(inst));
-    			//lt.add(inst);
-    			
-    			inst = reader.nextInstance();
-    			cnt++;
-    			//if (options.maxNumSent != -1 && cnt >= options.maxNumSent) break;
-    			//if (cnt % 1000 == 0)
-    			//	System.out.printf("%d ", cnt);
-    		}
-    				
-    		reader.close();
-    		//if (options.maxNumSent != -1 && cnt >= options.maxNumSent) break;
-        }
+		int numSents = numTrainInstances();
+		for (int k = 0; k < numSents; ++k)
+			lt.add(new DependencyInstance(getTrainInstance(k)));
+		corpus = null;		// the last pass over the treebanks
+		binCorpus = null;
         System.out.println("Done.");
 		
         Distribution dist = new Distribution(lt, this, options);
@@ -322,6 +307,45 @@ public class DependencyPipe implements Serializable {
 		return insts;
 	}
     
+    /**
+     * The training sentences in training order. With stream-shard:n they
+     * are read from the corpus cache in shards of n sentences instead of
+     * being kept in memory.
+     */
+    public TrainingSource createTrainingSource() throws IOException
+    {
+    	if (options.shardSize <= 0)
+    		return TrainingSource.create(createInstances());
+    	if (binCorpus == null)
+    		Utils.ThrowException("stream-shard requires corpus-cache");
+    	
+    	long start = System.currentTimeMillis();
+    	System.out.print("Creating training shards ... ");
+    	
+    	int N = binCorpus.size();
+    	int[] lang = new int[N];
+    	Distribution dist = new Distribution(this, options);
+    	for (int k = 0; k < N; ++k) {
+    		DependencyInstance inst = binCorpus.get(k);
+    		lang[k] = inst.lang;
+    		dist.addCount(inst);
+    	}
+        System.out.println("Done.");
+    	
+    	int[] order = shuffle(lang);
+    	System.out.println("supervised data: " + options.supSent);
+    	for (int i = 0; i < options.supSent; ++i)
+    		System.out.print("  " + dist.getScore(binCorpus.get(order[i])));
+    	System.out.println();
+    	
+    	TrainingSource source = TrainingSource.create(binCorpus, order, options);
+    	corpus = null;
+    	binCorpus = null;
+    	
+		System.out.printf("%d [%d ms]%n", order.length, System.currentTimeMillis() - start);
+    	return source;
+    }
+    
     public DependencyInstance[] removeUnsup(DependencyInstance[] lt) {
     	int size = options.supSent;
     	DependencyInstance[] tmp = new DependencyInstance[size];
@@ -581,47 +605,55 @@ public class DependencyPipe implements Serializable {
     }
 	
     public DependencyInstance[] shuffle(ArrayList<DependencyInstance> lt, Distribution dist) {
-    	int size = lt.size();
+    	int[] lang = new int[lt.size()];
+    	for (int i = 0; i < lang.length; ++i)
+    		lang[i] = lt.get(i).lang;
+    	
+    	int[] ids = shuffle(lang);
+    	DependencyInstance[] ret = new DependencyInstance[ids.length];
+    	for (int i = 0; i < ids.length; ++i)
+    		ret[i] = lt.get(ids[i]);
+    	
+    	System.out.println("supervised data: " + options.supSent);
+    	for (int i = 0; i < options.supSent; ++i)
+    		System.out.print("  " + dist.getScore(ret[i]));
+    	System.out.println();
+    	return ret;
+    }
+    
+    // training order as indices into lang: options.supSent sentences of the
+    // target language first, then sentences of the other languages
+    int[] shuffle(int[] lang) {
+    	int size = lang.length;
     	int supNum = 0;
     	for (int i = 0; i < size; ++i)
-    		if (lt.get(i).lang == options.targetLang)
+    		if (lang[i] == options.targetLang)
     			supNum++;
     	if (options.supSent == -1)
     		options.supSent = supNum;
     	
-    	int n = options.maxNumSent == -1 ? lt.size() - supNum + options.supSent : Math.min(options.maxNumSent, lt.size() - supNum + options.supSent);
+    	int n = options.maxNumSent == -1 ? size - supNum + options.supSent : Math.min(options.maxNumSent, size - supNum + options.supSent);
 
     	boolean[] used = new boolean[size];
-    	DependencyInstance[] ret = new DependencyInstance[n];
+    	int[] ret = new int[n];
     	int id = 0;
     	Random r = new Random(0);
-    	int supCnt = 0;
-    	double[] score = new double[options.supSent];
     	for (int i = 0; i < options.supSent; ++i) {
     		id = (id + r.nextInt(size)) % size;
-    		while (used[id] || lt.get(id).lang != options.targetLang) {
+    		while (used[id] || lang[id] != options.targetLang) {
     			id = (id + 1) % size;
     		}
-   			score[supCnt] = dist.getScore(lt.get(id));
-   			supCnt++;
-    		//id = i;
     		used[id] = true;
-    		ret[i] = lt.get(id);
+    		ret[i] = id;
     	}
     	for (int i = options.supSent; i < n; ++i) {
-    		//System.out.print(" " + i + " ");
     		id = (id + r.nextInt(size)) % size;
-    		while (used[id] || lt.get(id).lang == options.targetLang) {
-    			//System.out.print(lt.get(id).lang + "/" + id);
+    		while (used[id] || lang[id] == options.targetLang) {
     			id = (id + 1) % size;
     		}
     		used[id] = true;
-    		ret[i] = lt.get(id);
+    		ret[i] = id;
     	}
-    	System.out.println("supervised data: " + supCnt);
-    	for (int i = 0; i < options.supSent; ++i)
-    		System.out.print("  " + score[i]);
-    	System.out.println();
     	return ret;
     }
 
@@ -2,10 +2,9 @@ package parser;
 
 import java.util.Arrays;
 
-import parser.Options.FeatureMode;
-import parser.decoding.DependencyDecoder;
 import parser.tensor.FeatureNode;
 import utils.FeatureVector;
+import utils.ScoringFeatureVector;
 import utils.Utils;
 
 public class FeatureData {
@@ -16,8 +15,7 @@ public class FeatureData {
 	Options options;
 	Parameters parameters;
 	
-	TensorTransfer pruner;
-	DependencyDecoder prunerDecoder;
+	BasicArcPruner pruner;
 	
 	final int len;					// sentence length
 	final int ntypes;				// number of label types
@@ -27,23 +25,30 @@ public class FeatureData {
 	
 	int numarcs;					// number of un-pruned arcs and gold arcs (if indexGoldArcs == true)
 	int[] arc2id;					// map (h->m) arc to an id in [0, numarcs-1]
-	boolean[] isPruned;				// whether a (h->m) arc is pruned
-	int[] edges, st;
-	int numedges;						// number of un-pruned arcs
+	boolean[] isPruned;				// whether a (h->m) arc is pruned (null if no pruning)
+	int numedges;					// number of un-pruned arcs
 
-	private FeatureVector[] arcFvs;			// 1st order arc feature vectors, no label
+	private ArcFeatureArena arena;			// 1st order arc feature vectors, no label (null if addLoss == false)
+	private ScoringFeatureVector scorer;	// scores features without storing them
+	private boolean cached;					// the arena holds all arcs, read from the feature cache
 	private double[] arcLabelScores;		// 1st order arc scores (including tensor, and label)
 	private int[] bestLabel;				// assume label score is first order, so we can pre-compute the best label for each arc
 
 	public FeatureData(DependencyInstance inst, TensorTransfer model, boolean indexGoldArcs, boolean addLoss) 
+	{
+		this(inst, model, indexGoldArcs, addLoss, -1);
+	}
+	
+	// instId: index of inst in the training set (for the feature cache), or -1
+	public FeatureData(DependencyInstance inst, TensorTransfer model, boolean indexGoldArcs, boolean addLoss,
+			int instId) 
 	{
 		this.inst = inst;
 		pipe = model.pipe;
 		options = model.options;
 		parameters = model.parameters;
 		this.addLoss = addLoss;
-			
-		Utils.Assert(pruner == null || pruner.options.featureMode == FeatureMode.Basic);
+		pruner = model.pruner;
 		
 		fn = FeatureNode.createFeatureNode(options, inst, model);
 		fn.initTabels();
@@ -55,7 +60,11 @@ public class FeatureData {
 				&& gamma == parameters.pn.gamma
 				&& gamma == parameters.gamma);
 		
-		arcFvs = new FeatureVector[len * len];
+		// feature vectors are only needed for the gradient, and only of the
+		// gold and predicted arcs; they are extracted on demand
+		if (addLoss)
+			arena = ArcFeatureArena.get(this, len * len);
+		scorer = new ScoringFeatureVector(parameters.params);
 		arcLabelScores = new double[len * len];
 		Arrays.fill(arcLabelScores, NULL);
 		if (options.learnLabel) {
@@ -63,21 +72,60 @@ public class FeatureData {
 			Arrays.fill(bestLabel, -1);
 		}
 
+		// all arc features of a training sentence can be read from the cache
+		if (arena != null && gamma > 0.0 && instId >= 0 && model.featureCache != null) {
+			model.featureCache.read(instId, len, arena.fv, arena.start, arena.end);
+			cached = true;
+		}
+
 		// calculate 1st order feature vectors and scores
+		initArcPruningMap(indexGoldArcs);
 		initFirstOrderTables();
 	}
 	
+	private void initArcPruningMap(boolean includeGoldArcs)
+	{
+		if (!options.pruning || pruner == null) {
+			numedges = len * len - 2 * len + 1;
+		}
+		else {
+			isPruned = new boolean[len * len];
+			numedges = pruner.prune(inst, isPruned);
+			if (includeGoldArcs) {
+				for (int m = 1; m < len; ++m)
+					isPruned[inst.heads[m] * len + m] = false;
+			}
+		}
+		
+		numarcs = 0;
+		arc2id = new int[len * len];
+		Arrays.fill(arc2id, -1);
+		for (int h = 0; h < len; ++h)
+			for (int m = 1; m < len; ++m)
+				if (h != m && (isPruned == null || !isPruned[h * len + m]))
+					arc2id[h * len + m] = numarcs++;
+	}
+	
 	private void initFirstOrderTables() 
 	{
-		boolean nopruning = !options.pruning || pruner == null || options.featureMode == FeatureMode.Basic;
+		double[] tensorScores = null;
+		if (gamma < 1.0) {
+			tensorScores = new double[len * len];
+			fn.getScores(tensorScores, isPruned);
+		}
 		
 		for (int h = 0; h < len; ++h)
 			for (int m = 1; m < len; ++m) 
-				if (h != m && (nopruning || arc2id[h * len + m] != -1)) {
+				if (arc2id[h * len + m] != -1) {
 					double score = 0.0;
-					if (gamma > 0.0) {
-						arcFvs[h * len + m] = pipe.ff.createArcFeatures(inst, h, m);
-						score = parameters.getScore(arcFvs[h * len + m]) * gamma;
+					if (gamma > 0.0 && cached) {
+						int id = h * len + m;
+						score = parameters.getScore(arena.fv, arena.start[id], arena.end[id]) * gamma;
+					}
+					else if (gamma > 0.0) {
+						scorer.clear();
+						pipe.ff.createArcFeatures(inst, h, m, scorer);
+						score = scorer.score() * gamma;
 					}
 					
 					if (options.learnLabel) {
@@ -98,7 +146,7 @@ public class FeatureData {
 //							}
 //						}
 
-						double tScore = gamma < 1.0 ? fn.getScore(h, m, -1) * (1-gamma) : 0.0;
+						double tScore = gamma < 1.0 ? tensorScores[h * len + m] * (1-gamma) : 0.0;
 						double loss = getLoss(h, -1, inst.heads[m], -1);
 						double optScore = score + tScore + loss;
 
@@ -108,7 +156,7 @@ public class FeatureData {
 						//Utils.block();
 					}
 					else {
-						double tScore = gamma < 1.0 ? fn.getScore(h, m, -1) * (1-gamma) : 0.0;
+						double tScore = gamma < 1.0 ? tensorScores[h * len + m] * (1-gamma) : 0.0;
 						double loss = getLoss(h, -1, inst.heads[m], -1);
 						arcLabelScores[h * len + m] = score + tScore + loss;
 					}
@@ -125,8 +173,9 @@ public class FeatureData {
 			for (int label = 0; label < ntypes; ++label) {
 				double lScore = 0.0;
 				if (gamma > 0.0) {
-					FeatureVector lfv = pipe.ff.createArcLabelFeatures(inst, h, m, label);
-					lScore = parameters.getLabelScore(lfv) * gamma;
+					scorer.clear();
+					pipe.ff.createArcLabelFeatures(inst, h, m, label, scorer);
+					lScore = scorer.score() * gamma;
 				}
 				double tScore = gamma < 1.0 ? fn.getScore(h, m, label) * (1-gamma) : 0.0;
 				double loss = getLoss(h, label, heads[m], inst.deplbids[m]);
@@ -159,21 +208,53 @@ public class FeatureData {
 	}
 	
 	public double getArcScoreWithoutLoss(int h, int m, int l) {
-		double score = gamma > 0.0 ? parameters.getScore(arcFvs[h * len + m]) : 0.0;
-		double labelScore = options.learnLabel &&  gamma > 0.0
-				? parameters.getLabelScore(pipe.ff.createArcLabelFeatures(inst, h, m, l)) : 0.0;
+		double score = gamma > 0.0 ? getArcScore(h, m) : 0.0;
+		double labelScore = 0.0;
+		if (options.learnLabel && gamma > 0.0) {
+			scorer.clear();
+			pipe.ff.createArcLabelFeatures(inst, h, m, l, scorer);
+			labelScore = scorer.score();
+		}
 		double tensorScore = gamma < 1.0 ? fn.getScore(h, m, l) : 0.0;
 		return (score + labelScore) * gamma + tensorScore * (1 - gamma);
 	}
 	
+	private double getArcScore(int h, int m) {
+		scorer.clear();
+		pipe.ff.createArcFeatures(inst, h, m, scorer);
+		return scorer.score();
+	}
+	
+	// offset of arc h->m in the arena, extracting its features on first use
+	private int getArcFeatures(int h, int m) {
+		int id = h * len + m;
+		if (arena.start[id] < 0) {
+			arena.start[id] = arena.fv.size();
+			pipe.ff.createArcFeatures(inst, h, m, arena.fv);
+			arena.end[id] = arena.fv.size();
+		}
+		return id;
+	}
+	
 	public FeatureVector getFeatureVector(DependencyInstance inst) {
-		FeatureVector fv = new FeatureVector(pipe.ff.numArcFeats);
 		int n = inst.length;
+		Utils.Assert(arena != null);
+		arena.check(this);
+		
+		int size = 0;
+		if (gamma > 0.0) {
+			for (int i = 1; i < n; ++i) {
+				int id = getArcFeatures(inst.heads[i], i);
+				size += arena.end[id] - arena.start[id];
+			}
+		}
+		FeatureVector fv = new FeatureVector(pipe.ff.numArcFeats, Math.max(size, 1));
 		
 		for (int i = 1; i < n; ++i) {
 			int h = inst.heads[i];
 			if (gamma > 0.0) { 
-				fv.addEntries(arcFvs[h * n + i]);
+				int id = h * n + i;
+				fv.addEntries(arena.fv, arena.start[id], arena.end[id], 1.0);
 				//fv.addEntries(pipe.ff.createArcLabelFeatures(inst, h, i, inst.deplbids[i]));
 			}
 		}
@@ -213,3 +294,42 @@ public class FeatureData {
 		return dfv;
 	}
 }
+
+/**
+ * Per-thread buffer holding the arc feature vectors of one sentence. All
+ * arcs are appended to one FeatureVector, and arc h*len+m occupies entries
+ * [start, end), or start == -1 if it is not extracted yet. The buffer is
+ * reused by the next sentence parsed on the same thread, so a FeatureData
+ * is only valid until then.
+ */
+class ArcFeatureArena {
+	
+	static final ThreadLocal<ArcFeatureArena> arenas = new ThreadLocal<ArcFeatureArena>() {
+		@Override
+		protected ArcFeatureArena initialValue() {
+			return new ArcFeatureArena();
+		}
+	};
+	
+	FeatureVector fv = new FeatureVector(1, 1 << 16);
+	int[] start = new int[0];
+	int[] end = new int[0];
+	FeatureData owner;
+	
+	static ArcFeatureArena get(FeatureData owner, int numArcs) {
+		ArcFeatureArena arena = arenas.get();
+		arena.owner = owner;
+		arena.fv.clear();
+		arena.fv.setNumRows(owner.pipe.ff.numArcFeats);
+		if (arena.start.length < numArcs) {
+			arena.start = new int[numArcs];
+			arena.end = new int[numArcs];
+		}
+		Arrays.fill(arena.start, 0, numArcs, -1);
+		return arena;
+	}
+	
+	void check(FeatureData fd) {
+		Utils.Assert(owner == fd);
+	}
+}
@@ -1,5 +1,7 @@
 package parser;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Random;
 
@@ -22,6 +24,18 @@ public class Options implements Cloneable, Serializable {
 		MIRA,
 	}
 	
+	public enum WeightStore {
+		Dense,			// double[]
+		Float,			// float[]
+		Sparse,			// open-addressing map of the touched slots
+		Mapped,			// off-heap, memory-mapped files in weightDir
+	}
+	
+	public enum MSTDecoder {
+		ChuLiuEdmond,	// contracts cycles on the dense score matrix
+		Tarjan,			// Tarjan's algorithm with mergeable heaps and union-find
+	}
+	
 	public enum Dataset {
 		CoNLL_UNI,
 		CoNLL_07,		// not implemented
@@ -36,6 +50,13 @@ public class Options implements Cloneable, Serializable {
 	
 	public UpdateMode updateMode = UpdateMode.AdaGrad;
 	public TensorMode tensorMode = TensorMode.Hierarchical;
+	public WeightStore weightStore = WeightStore.Dense;
+	public MSTDecoder mstDecoder = MSTDecoder.ChuLiuEdmond;	// non-projective decoder
+	public String weightDir = null;		// default: <model file>.weights
+	public boolean weightsReset = false;	// a new mapped store may overwrite the files in weightDir
+	public String featureCacheDir = null;	// cache the training arc features in this directory
+	public String corpusCacheDir = null;	// cache the training sentences as ids in this directory
+	public int shardSize = 0;				// stream the training sentences from the corpus cache in shards of this size (0: all in memory)
 		
 	public String dataDir = "./data";
 	public String trainExt = "-universal-train.conll";
@@ -48,6 +69,7 @@ public class Options implements Cloneable, Serializable {
 	public String outFile = "output";
 	public String modelFile = "model.out";
 	public String typoFile = "typo.txt";
+	public boolean mappedReader = false;	// read CoNLL-U files through MappedConllUniReader
     
 	public int maxNumSent = -1;
 	public int supSent = 50; 
@@ -57,8 +79,9 @@ public class Options implements Cloneable, Serializable {
 	public FeatureMode featureMode = FeatureMode.Standard;
 	public boolean projective = false;
 	public boolean learnLabel = false;
-	public boolean pruning = true;
+	public boolean pruning = false;
 	public double pruningCoeff = 0.10;
+	public int pruningK = 10;			// max number of heads kept per modifier
 	
 	public int numHcThreads = 4;		// hill climbing: number of threads
 	
@@ -83,7 +106,9 @@ public class Options implements Cloneable, Serializable {
 	public int batchSize = 10;		// batch size
 	public double lambda = 10.0;	// regularization
 	public double tensorLambda = 0.1;
+	public boolean lazyReg = false;	// apply the l2 decay of a feature only when it is touched
 	public boolean useBatch = false;
+	public int numThreads = 1;		// number of training threads
 	
 	// tensor
 	public double gamma = 1.0;
@@ -148,6 +173,21 @@ public class Options implements Cloneable, Serializable {
 		return super.clone();
 	}
 	
+	// options of older models lack the fields added since; give them their
+	// defaults instead of zero
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		if (weightStore == null)
+			weightStore = WeightStore.Dense;
+		if (mstDecoder == null)
+			mstDecoder = MSTDecoder.ChuLiuEdmond;
+		if (pruningK == 0)
+			pruningK = 10;
+		if (numThreads == 0)
+			numThreads = 1;
+	}
+	
     public void processArguments(String[] args) {
     	
     	for (String arg : args) {
@@ -196,6 +236,39 @@ public class Options implements Cloneable, Serializable {
                 		break;
                 	}
             }
+            else if (arg.startsWith("weights:")) {
+            	String str = arg.split(":")[1];
+            	WeightStore[] values = WeightStore.values();
+                for (int i = 0; i < values.length; ++i)
+                	if (str.equalsIgnoreCase(values[i].name())) {
+                		weightStore = values[i];
+                		break;
+                	}
+            }
+            else if (arg.startsWith("mst:")) {
+            	String str = arg.split(":")[1];
+            	MSTDecoder[] values = MSTDecoder.values();
+                for (int i = 0; i < values.length; ++i)
+                	if (str.equalsIgnoreCase(values[i].name())) {
+                		mstDecoder = values[i];
+                		break;
+                	}
+            }
+            else if (arg.startsWith("weight-dir:")) {
+            	weightDir = arg.split(":")[1];
+            }
+            else if (arg.startsWith("weights-reset:")) {
+            	weightsReset = Boolean.parseBoolean(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("feature-cache:")) {
+            	featureCacheDir = arg.split(":")[1];
+            }
+            else if (arg.startsWith("corpus-cache:")) {
+            	corpusCacheDir = arg.split(":")[1];
+            }
+            else if (arg.startsWith("stream-shard:")) {
+            	shardSize = Integer.parseInt(arg.split(":")[1]);
+            }
             else if (arg.startsWith("max-sent:")) {
                 maxNumSent = Integer.parseInt(arg.split(":")[1]);
             }
@@ -254,15 +327,27 @@ public class Options implements Cloneable, Serializable {
             else if (arg.startsWith("batch:")) {
                 useBatch = Boolean.parseBoolean(arg.split(":")[1]);
             }
+            else if (arg.startsWith("lazy-reg:")) {
+                lazyReg = Boolean.parseBoolean(arg.split(":")[1]);
+            }
             else if (arg.startsWith("direct:")) {
                 direct = Boolean.parseBoolean(arg.split(":")[1]);
             }
+            else if (arg.startsWith("mmap-reader:")) {
+            	mappedReader = Boolean.parseBoolean(arg.split(":")[1]);
+            }
             else if (arg.startsWith("pruning:")) {
                 pruning = Boolean.parseBoolean(arg.split(":")[1]);
             }
             else if (arg.startsWith("pruning-weight:")) {
             	pruningCoeff = Double.parseDouble(arg.split(":")[1]);
             }
+            else if (arg.startsWith("pruning-k:")) {
+            	pruningK = Integer.parseInt(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("threads:")) {
+            	numThreads = Integer.parseInt(arg.split(":")[1]);
+            }
             else if (arg.startsWith("thread:")) {
             	numHcThreads = Integer.parseInt(arg.split(":")[1]);
             }
@@ -291,8 +376,6 @@ public class Options implements Cloneable, Serializable {
     			useHB = false;
     			useGS = false;
     			useTS = false;
-    			
-    			pruning = false;
     			break;
     		case Standard:
     			break;
@@ -328,6 +411,19 @@ public class Options implements Cloneable, Serializable {
         System.out.println("seed: " + seed);  
         System.out.println("tensor mode:" + tensorMode.name());
         System.out.println("update mode:" + updateMode.name());
+        System.out.println("weight store:" + weightStore.name());
+        if (!projective)
+        	System.out.println("mst decoder:" + mstDecoder.name());
+        if (weightStore == WeightStore.Mapped) {
+        	System.out.println("weight-dir: " + weightDir);
+        	System.out.println("weights-reset: " + weightsReset);
+        }
+        if (featureCacheDir != null)
+        	System.out.println("feature cache: " + featureCacheDir);
+        if (corpusCacheDir != null)
+        	System.out.println("corpus cache: " + corpusCacheDir);
+        if (shardSize > 0)
+        	System.out.println("stream shard: " + shardSize);
         if (updateMode == UpdateMode.SGD) {
         	System.out.println("learning rate: " + SGDLearningRate);
         }
@@ -343,10 +439,17 @@ public class Options implements Cloneable, Serializable {
         System.out.println("extra-R: " + extraR);
         System.out.println("use NN: " + useNN);
         System.out.println("use batch: " + useBatch);
+        System.out.println("lazy reg: " + lazyReg);
+        System.out.println("threads: " + numThreads);
         System.out.println("direct transfer: " + direct);
         System.out.println("word-vector:" + wordVectorFile);
         System.out.println("projective: " + projective);
+        System.out.println("mmap reader: " + mappedReader);
         System.out.println("pruning: " + pruning);
+        if (pruning) {
+        	System.out.println("pruning weight: " + pruningCoeff);
+        	System.out.println("pruning k: " + pruningK);
+        }
         System.out.println("hill-climbing converge (train): " + numTrainConverge);
         System.out.println("hill-climbing converge (test): " + numTestConverge);
         System.out.println("thread: " + numHcThreads);
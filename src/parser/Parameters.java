@@ -1,16 +1,24 @@
 package parser;
 
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.set.hash.TIntHashSet;
 import gnu.trove.set.hash.TLongHashSet;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.io.Serializable;
 import java.util.Arrays;
 
 import parser.Options.UpdateMode;
 import parser.tensor.ParameterNode;
+import utils.DenseWeightVector;
 import utils.FeatureVector;
+import utils.MappedWeightVector;
 import utils.Utils;
+import utils.WeightVector;
 
 public class Parameters implements Serializable {
 	/**
@@ -26,13 +34,23 @@ public class Parameters implements Serializable {
 	
 	public double adaAlpha, adaEps, C;
 	
-	public double[] params;
+	public WeightVector params;
 	public int size;
-	public transient double[] back, total, sg;
-	public transient double[] dFV;
+	public transient WeightVector total, sg;
+	public transient WeightVector dFV;
 	public transient double totalLoss;
 	
-	public transient double[] reg;
+	public transient WeightVector reg;
+	
+	// averaged MIRA weights are swapped in place
+	private transient int[] avgIDs;
+	private transient double[] back;
+	
+	// lazy regularization: features touched in the current batch and the
+	// step at which each feature was last brought up to date
+	private transient TIntHashSet batchIDSet;
+	private transient TIntIntHashMap lastUpdate;
+	private transient double lazyLambda;
 	
 	public int updCnt;
 	
@@ -45,67 +63,115 @@ public class Parameters implements Serializable {
 		gamma = options.gamma;
 		
 		size = pipe.ff.numArcFeats;		
-		params = new double[size];
+		params = WeightVector.createWeightVector(options, size, "params");
 		
 		if (options.updateMode == UpdateMode.AdaGrad) {
-			sg = new double[size];
+			sg = WeightVector.createWeightVector(options, size, "sg");
 			adaAlpha = options.AdaAlpha;
 			adaEps = options.AdaEps;
 		}
 		else if (options.updateMode == UpdateMode.MIRA) {
-			total = new double[size];
+			total = WeightVector.createWeightVector(options, size, "total");
 			C = options.MIRAC;
 		}
 		
 		updCnt = 0;
-		dFV = new double[size];
+		dFV = WeightVector.createWeightVector(options, size, null);
+		// lazy regularization only replaces the decay loop of batch AdaGrad
+		if (options.lazyReg && options.useBatch && options.updateMode == UpdateMode.AdaGrad) {
+			batchIDSet = new TIntHashSet();
+			lastUpdate = new TIntIntHashMap();
+		}
 		totalLoss = 0.0;
 	}
 
+	// models saved before the weight stores have params as a double[]
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream.GetField fields = in.readFields();
+		pn = (ParameterNode) fields.get("pn", null);
+		options = (Options) fields.get("options", null);
+		pipe = (DependencyPipe) fields.get("pipe", null);
+		gamma = fields.get("gamma", 0.0);
+		adaAlpha = fields.get("adaAlpha", 0.0);
+		adaEps = fields.get("adaEps", 0.0);
+		C = fields.get("C", 0.0);
+		size = fields.get("size", 0);
+		updCnt = fields.get("updCnt", 0);
+		
+		Object p = fields.get("params", null);
+		params = p instanceof double[] ? new DenseWeightVector((double[]) p) : (WeightVector) p;
+		
+		// older models end here
+		try {
+			sg = (WeightVector) in.readObject();
+			total = (WeightVector) in.readObject();
+		} catch (OptionalDataException e) {
+			sg = total = null;
+		}
+	}
+	
+	// the learner statistics are only kept when they cost a file reference,
+	// so that a run can resume from a mapped store
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		boolean mapped = params instanceof MappedWeightVector;
+		out.writeObject(mapped ? sg : null);
+		out.writeObject(mapped ? total : null);
+	}
+	
+	// mapped stores loaded from a model are read-only until they are updated
+	private void openForWrite()
+	{
+		params.openForWrite();
+		if (sg != null)
+			sg.openForWrite();
+		if (total != null)
+			total.openForWrite();
+	}
+	
 	public double getScore(FeatureVector fv)
 	{
-		return fv.dotProduct(params);
+		return params.dotProduct(fv);
+	}
+	
+	public double getScore(FeatureVector fv, int start, int end)
+	{
+		return params.dotProduct(fv, start, end);
 	}
 
 	public double getLabelScore(FeatureVector fv)
 	{
-		return fv.dotProduct(params);
+		return params.dotProduct(fv);
 	}
 	
 	public double addGradient(DependencyInstance gold, DependencyInstance pred,
 			FeatureData fd) {
-		int n = gold.length;
-		
-		double loss = 0.0;
-		for (int i = 1; i < n; ++i)
-			loss += fd.getLoss(pred.heads[i], gold.deplbids[i], gold.heads[i], gold.deplbids[i]);
+		double loss = addTensorGradient(gold, pred, fd, getArcLoss(gold, pred, fd), pn, false);
 		
-		// tensor
-		if (gamma < 1.0) {
-			for (int i = 1; i < n; ++i) {
-				loss -= fd.fn.addGradient(gold.heads[i], i, -1, 1.0, pn) * (1 - gamma);
-				loss += fd.fn.addGradient(pred.heads[i], i, -1, -1.0, pn) * (1 - gamma);
-				//if (options.learnLabel)
-				//	Utils.Assert(pred.deplbids[i] == fd.getBestLabel(pred.heads[i], i));
-			}
+		// traditional features
+		if (gamma > 0.0) {
+			FeatureVector dt = fd.getFeatureDifference(gold, pred);
+			loss -= params.dotProduct(dt) * gamma;
+			addDenseGradient(dt);
 		}
 		
+		totalLoss += loss;
+		
+		return loss;
+	}
+	
+	public double addLabelGradient(DependencyInstance gold, DependencyInstance pred,
+			FeatureData fd) {
+		double loss = addTensorGradient(gold, pred, fd, getLabelLoss(gold, pred, fd), pn, true);
+		checkBestLabels(pred, fd);
+		
 		// traditional features
-		FeatureVector dt = null;
 		if (gamma > 0.0) {
-			dt = fd.getFeatureDifference(gold, pred);
-			loss -= dt.dotProduct(params) * gamma;
-			TIntHashSet tmp = new TIntHashSet();
-			for (int i = 0, L = dt.size(); i < L; ++i) {
-				int x = dt.x(i);
-				dFV[x] += dt.value(i);
-				if (!tmp.contains(x)) {
-					if (!pipe.ff.featureIDSet.contains(x)) {
-						pipe.ff.featureIDSet.add(x);
-					}
-					tmp.add(x);
-				}
-			}
+			FeatureVector dt = fd.getLabelFeatureDifference(gold, pred);
+			loss -= params.dotProduct(dt) * gamma;
+			addDenseGradient(dt);
 		}
 		
 		totalLoss += loss;
@@ -113,54 +179,133 @@ public class Parameters implements Serializable {
 		return loss;
 	}
 	
+	// same as addGradient(), but the gradient goes to the buffers of grad
+	// so that several threads can work on one batch
+	public double addGradient(DependencyInstance gold, DependencyInstance pred,
+			FeatureData fd, BatchGradient grad) {
+		double loss = addTensorGradient(gold, pred, fd, getArcLoss(gold, pred, fd), grad.pn, false);
+		
+		if (gamma > 0.0) {
+			FeatureVector dt = fd.getFeatureDifference(gold, pred);
+			loss -= params.dotProduct(dt) * gamma;
+			grad.dFV.addEntries(dt);
+		}
+		
+		grad.loss += loss;
+		
+		return loss;
+	}
+	
 	public double addLabelGradient(DependencyInstance gold, DependencyInstance pred,
-			FeatureData fd) {
+			FeatureData fd, BatchGradient grad) {
+		double loss = addTensorGradient(gold, pred, fd, getLabelLoss(gold, pred, fd), grad.pn, true);
+		checkBestLabels(pred, fd);
+		
+		if (gamma > 0.0) {
+			FeatureVector dt = fd.getLabelFeatureDifference(gold, pred);
+			loss -= params.dotProduct(dt) * gamma;
+			grad.dFV.addEntries(dt);
+		}
+		
+		grad.loss += loss;
+		
+		return loss;
+	}
+	
+	// move a (reduced) batch gradient into dFV and pn before batchUpdate()
+	public void addBatchGradient(BatchGradient grad) {
+		if (gamma > 0.0) {
+			addDenseGradient(grad.dFV);
+			grad.dFV.clear();
+		}
+		if (gamma < 1.0)
+			pn.mergeGradient(grad.pn);
+		
+		totalLoss += grad.loss;
+		grad.loss = 0.0;
+	}
+	
+	private double getArcLoss(DependencyInstance gold, DependencyInstance pred, FeatureData fd) {
 		int n = gold.length;
 		
 		double loss = 0.0;
+		// don't consider labels here
+		for (int i = 1; i < n; ++i)
+			loss += fd.getLoss(pred.heads[i], gold.deplbids[i], gold.heads[i], gold.deplbids[i]);
+		return loss;
+	}
+	
+	private double getLabelLoss(DependencyInstance gold, DependencyInstance pred, FeatureData fd) {
+		int n = gold.length;
+		
+		double loss = 0.0;
+		// don't consider arcs here
 		for (int i = 1; i < n; ++i) {
 			Utils.Assert(pred.heads[i] == gold.heads[i]);
 			loss += fd.getLoss(pred.heads[i], pred.deplbids[i], gold.heads[i], gold.deplbids[i]);
 		}
-		
-		// tensor
+		return loss;
+	}
+	
+	private double addTensorGradient(DependencyInstance gold, DependencyInstance pred,
+			FeatureData fd, double loss, ParameterNode gpn, boolean label) {
 		if (gamma < 1.0) {
+			int n = gold.length;
 			for (int i = 1; i < n; ++i) {
-				loss -= fd.fn.addGradient(gold.heads[i], i, gold.deplbids[i], 1.0, pn) * (1 - gamma);
-				loss += fd.fn.addGradient(pred.heads[i], i, pred.deplbids[i], -1.0, pn) * (1 - gamma);
-				if (options.learnLabel)
-					Utils.Assert(pred.deplbids[i] == fd.getBestLabel(pred.heads[i], i));
+				loss -= fd.fn.addGradient(gold.heads[i], i, label ? gold.deplbids[i] : -1, 1.0, gpn) * (1 - gamma);
+				loss += fd.fn.addGradient(pred.heads[i], i, label ? pred.deplbids[i] : -1, -1.0, gpn) * (1 - gamma);
 			}
 		}
-		
-		// traditional features
-		FeatureVector dt = null;
-		if (gamma > 0.0) {
-			dt = fd.getLabelFeatureDifference(gold, pred);
-			loss -= dt.dotProduct(params) * gamma;
-			TIntHashSet tmp = new TIntHashSet();
-			for (int i = 0, L = dt.size(); i < L; ++i) {
-				int x = dt.x(i);
-				dFV[x] += dt.value(i);
-				if (!tmp.contains(x)) {
-					if (!pipe.ff.featureIDSet.contains(x)) {
-						pipe.ff.featureIDSet.add(x);
-					}
-					tmp.add(x);
-				}
-			}
-		}
-		
-		totalLoss += loss;
-		
 		return loss;
 	}
 	
+	private void checkBestLabels(DependencyInstance pred, FeatureData fd) {
+		if (gamma < 1.0 && options.learnLabel) {
+			for (int i = 1, n = pred.length; i < n; ++i)
+				Utils.Assert(pred.deplbids[i] == fd.getBestLabel(pred.heads[i], i));
+		}
+	}
+	
+	private void addDenseGradient(FeatureVector dt) {
+		for (int i = 0, L = dt.size(); i < L; ++i) {
+			int x = dt.x(i);
+			dFV.add(x, dt.value(i));
+			// the eager update decays the weights in featureIDSet only, so a
+			// weight new to it has not missed any step
+			if (batchIDSet != null && !pipe.ff.featureIDSet.contains(x)
+					&& !lastUpdate.containsKey(x))
+				lastUpdate.put(x, updCnt);
+			pipe.ff.featureIDSet.add(x);
+			if (batchIDSet != null)
+				batchIDSet.add(x);
+		}
+	}
+	
 	public void batchUpdate(final int N) {
+		openForWrite();
 		updCnt++;
 		switch (options.updateMode) {
 		case AdaGrad:
-			if (gamma > 0.0) {
+			if (gamma > 0.0 && batchIDSet != null) {
+				final int t = updCnt;
+				lazyLambda = options.lambda / N * options.batchSize;
+				batchIDSet.forEach(new TIntProcedure() {
+					@Override
+					public boolean execute(int i) {
+						applyDecay(i, t - 1);
+						double r = reg != null ? reg.get(i) : 0.0;
+						double g = (dFV.get(i) - lazyLambda * (params.get(i) - r)) * gamma;
+						sg.add(i, g * g);
+						params.add(i, adaAlpha / Math.sqrt(sg.get(i) + adaEps) * g);
+						dFV.set(i, 0.0);
+						lastUpdate.put(i, t);
+						
+						return true;
+					}
+				});
+				batchIDSet.clear();
+			}
+			else if (gamma > 0.0) {
 				/*
 				for (int i = 0; i < size; ++i) {
 					double g = (dFV[i] - options.lambda * params[i]) * gamma;
@@ -176,12 +321,12 @@ public class Parameters implements Serializable {
 						double g = 0.0;
 						double lambda = options.lambda / N * options.batchSize;
 						if (reg != null)
-							g = (dFV[i] - lambda * (params[i] - reg[i])) * gamma;
+							g = (dFV.get(i) - lambda * (params.get(i) - reg.get(i))) * gamma;
 						else 
-							g = (dFV[i] - lambda * params[i]) * gamma;
-						sg[i] += g * g;
-						params[i] += adaAlpha / Math.sqrt(sg[i] + adaEps) * g;
-						dFV[i] = 0.0;
+							g = (dFV.get(i) - lambda * params.get(i)) * gamma;
+						sg.add(i, g * g);
+						params.add(i, adaAlpha / Math.sqrt(sg.get(i) + adaEps) * g);
+						dFV.set(i, 0.0);
 						
 						return true;
 					}
@@ -193,27 +338,36 @@ public class Parameters implements Serializable {
 			
 			break;
 		case MIRA:
-			double l2norm = gamma < 1.0 ? pn.gradientl2Norm() * (1 - gamma) * (1 - gamma) : 0.0;
+			// weights outside featureIDSet are zero and have no gradient
+			final double[] l2norm = {gamma < 1.0 ? pn.gradientl2Norm() * (1 - gamma) * (1 - gamma) : 0.0};
 			if (gamma > 0.0) {
-				for (int i = 0; i < size; ++i) {
-					double g = (dFV[i] - options.lambda * params[i]) * gamma;
-					l2norm += g * g;
-				}
+				pipe.ff.featureIDSet.forEach(new TIntProcedure() {
+					@Override
+					public boolean execute(int i) {
+						double g = (dFV.get(i) - options.lambda * params.get(i)) * gamma;
+						l2norm[0] += g * g;
+						return true;
+					}
+				});
 			}
-			double alpha = totalLoss / l2norm;
+			double alpha = totalLoss / l2norm[0];
 			
 			if (gamma > 0.0) {
-				double lr = Math.min(alpha, C);
-				for (int i = 0; i < size; ++i) {
-					double g = (dFV[i] - options.lambda * params[i]) * gamma;
-					params[i] += lr * g;
-					total[i] += lr * updCnt * g;
-					dFV[i] = 0.0;
-				}
+				final double lr = Math.min(alpha, C);
+				pipe.ff.featureIDSet.forEach(new TIntProcedure() {
+					@Override
+					public boolean execute(int i) {
+						double g = (dFV.get(i) - options.lambda * params.get(i)) * gamma;
+						params.add(i, lr * g);
+						total.add(i, lr * updCnt * g);
+						dFV.set(i, 0.0);
+						return true;
+					}
+				});
 			}
 			
 			if (gamma < 1.0)
-				pn.updateMIRA(alpha, updCnt, 1.0);
+				pn.updateMIRA(alpha, updCnt, 1.0, pn);
 	    		
 			break;
 		default:
@@ -226,193 +380,183 @@ public class Parameters implements Serializable {
 	public double update(DependencyInstance gold, DependencyInstance pred,
 			FeatureData fd)
 	{
-		updCnt++;
-		int n = gold.length;
+		return update(gold, pred, fd, pn);
+	}
+	
+	public double updateLabel(DependencyInstance gold, DependencyInstance pred,
+			FeatureData fd)
+	{
+		return updateLabel(gold, pred, fd, pn);
+	}
+	
+	// gpn holds the tensor gradient before it is applied: pn itself, or a
+	// node from pn.createGradientNode() owned by the calling thread
+	public double update(DependencyInstance gold, DependencyInstance pred,
+			FeatureData fd, ParameterNode gpn)
+	{
+		FeatureVector dt = gamma > 0.0 ? fd.getFeatureDifference(gold, pred) : null;
 		
-		double loss = 0.0;
-		// don't consider labels here
-		for (int i = 1; i < n; ++i)
-			loss += fd.getLoss(pred.heads[i], gold.deplbids[i], gold.heads[i], gold.deplbids[i]);
+		return applyUpdate(gold, pred, fd, getArcLoss(gold, pred, fd), dt, false, gpn);
+	}	
+	
+	public double updateLabel(DependencyInstance gold, DependencyInstance pred,
+			FeatureData fd, ParameterNode gpn)
+	{
+		FeatureVector dt = gamma > 0.0 ? fd.getLabelFeatureDifference(gold, pred) : null;
 		
-		//double loss2 = loss;
-		// compute loss2
-		//for (int i = 1; i < n; ++i) {
-		//	loss2 -= fd.getArcScoreWithoutLoss(gold.heads[i], i, gold.deplbids[i]);
-		//	loss2 += fd.getArcScoreWithoutLoss(pred.heads[i], i, pred.deplbids[i]);
-		//}
-
-		// tensor
-		if (gamma < 1.0) {
-			for (int i = 1; i < n; ++i) {
-				loss -= fd.fn.addGradient(gold.heads[i], i, -1, 1.0, pn) * (1 - gamma);
-				loss += fd.fn.addGradient(pred.heads[i], i, -1, -1.0, pn) * (1 - gamma);
-				//if (options.learnLabel)
-				//	Utils.Assert(pred.deplbids[i] == fd.getBestLabel(pred.heads[i], i));
-				//System.out.println(pred.heads[i] + "\t" + gold.heads[i] + "\t" + pred.deplbids[i] + "\t" + gold.deplbids[i]);
-			}
+		return applyUpdate(gold, pred, fd, getLabelLoss(gold, pred, fd), dt, true, gpn);
+	}	
+	
+	// Lock-free (Hogwild) when every thread has its own gpn: only the update
+	// counter and featureIDSet are shared structures and are locked
+	private double applyUpdate(DependencyInstance gold, DependencyInstance pred,
+			FeatureData fd, double loss, FeatureVector dt, boolean label, ParameterNode gpn)
+	{
+		double dtScore = gamma > 0.0 ? params.dotProduct(dt) * gamma : 0.0;
+		openForWrite();
+		
+		int cnt;
+		synchronized (this) {
+			cnt = ++updCnt;
 		}
-		//System.out.println(loss);
-		//Utils.block();
+		
+		// tensor
+		loss = addTensorGradient(gold, pred, fd, loss, gpn, label);
 		
 		// traditional features
-		FeatureVector dt = null;
-		if (gamma > 0.0) {
-			dt = fd.getFeatureDifference(gold, pred);
-			loss -= dt.dotProduct(params) * gamma;
-		}
-    	
-    	//Utils.Assert(Math.abs(loss - loss2) < 1e-6);
+		loss -= dtScore;
 		
-		// update
 		if (loss > 0) {
 			switch (options.updateMode) {
 			case AdaGrad:
-				if (gamma > 0.0) {
-					for (int i = 0, L = dt.size(); i < L; ++i) {
-						int x = dt.x(i);
-						double g = dt.value(i) * gamma;
-						sg[x] += g * g;
-						params[x] += adaAlpha / Math.sqrt(sg[x] + adaEps) * g;
-					}
-				}
-				
 				if (gamma < 1.0)
-					pn.updateAda();
-				
+					pn.updateAda(gpn);
 				break;
 			case MIRA:
-				double l2norm = gamma < 1.0 ? pn.gradientl2Norm() * (1 - gamma) * (1 - gamma) : 0.0;
+				double l2norm = gamma < 1.0 ? gpn.gradientl2Norm() * (1 - gamma) * (1 - gamma) : 0.0;
 				l2norm += gamma > 0.0 ? dt.Squaredl2NormUnsafe() * gamma * gamma : 0.0;
 				double alpha = loss / l2norm;
-		        //System.out.println(alpha + " " + l2norm);
-		        //Utils.block();
 				
 				if (gamma > 0.0) {
-					//System.out.println(alpha + " " + C);
-					//Utils.block();
 					double lr = Math.min(alpha, C);
 					for (int i = 0, L = dt.size(); i < L; ++i) {
 						int x = dt.x(i);
 						double g = dt.value(i) * gamma * (gold.lang == options.targetLang ? 5.0 : 1.0);
-						params[x] += lr * g;
-						total[x] += lr * updCnt * g;
+						params.add(x, lr * g);
+						total.add(x, lr * cnt * g);
+					}
+					synchronized (pipe.ff.featureIDSet) {
+						for (int i = 0, L = dt.size(); i < L; ++i)
+							pipe.ff.featureIDSet.add(dt.x(i));
 					}
 				}
 				
 				if (gamma < 1.0)
-					pn.updateMIRA(alpha, updCnt, gold.lang == options.targetLang ? 5.0 : 1.0);
-		    		
+					pn.updateMIRA(alpha, cnt, gold.lang == options.targetLang ? 5.0 : 1.0, gpn);
 				break;
 			default:
 				break;
 			}
 		}
 		
+		if (loss > 0 && options.updateMode == UpdateMode.AdaGrad && gamma > 0.0) {
+			for (int i = 0, L = dt.size(); i < L; ++i) {
+				int x = dt.x(i);
+				double g = dt.value(i) * gamma;
+				sg.add(x, g * g);
+				params.add(x, adaAlpha / Math.sqrt(sg.get(x) + adaEps) * g);
+			}
+		}
+		
 		return loss;
-	}	
+	}
 	
-	public double updateLabel(DependencyInstance gold, DependencyInstance pred,
-			FeatureData fd)
-	{
-		updCnt++;
-		int n = gold.length;
-		
-		double loss = 0.0;
-		// don't consider arcs here
-		for (int i = 1; i < n; ++i) {
-			Utils.Assert(pred.heads[i] == gold.heads[i]);
-			loss += fd.getLoss(pred.heads[i], pred.deplbids[i], gold.heads[i], gold.deplbids[i]);
-		}
-
-		// tensor
-		if (gamma < 1.0) {
-			for (int i = 1; i < n; ++i) {
-				loss -= fd.fn.addGradient(gold.heads[i], i, gold.deplbids[i], 1.0, pn) * (1 - gamma);
-				loss += fd.fn.addGradient(pred.heads[i], i, pred.deplbids[i], -1.0, pn) * (1 - gamma);
+	// Apply the regularization steps feature i has skipped up to step t (a
+	// weight featureIDSet had from the start has skipped all steps since 0).
+	// The first two steps are exact; after them, the steps come in chunks of
+	// doubling length, in each of which the AdaGrad rate is kept at its value
+	// from the start of the chunk: the chunk of c steps shrinks the weight
+	// (towards reg) by a factor f^c and adds a geometric series to sg.
+	private void applyDecay(int i, int t) {
+		int k = t - lastUpdate.get(i);
+		double r = reg != null ? reg.get(i) : 0.0;
+		double s = lazyLambda * gamma;
+		for (int done = 0; done < k; ) {
+			double d = params.get(i) - r;
+			if (d == 0.0)
+				return;
+			
+			int c = Math.min(Math.max(done, 1), k - done);
+			double g = s * d;
+			double f = 1 - adaAlpha / Math.sqrt(sg.get(i) + g * g + adaEps) * s;
+			if (c == 1) {
+				sg.add(i, g * g);
+				params.set(i, r + d * f);
+			}
+			else {
+				double f2 = f * f;
+				double geo = f2 == 1.0 ? c : (1 - Math.pow(f2, c)) / (1 - f2);
+				sg.add(i, g * g * geo);
+				params.set(i, r + d * Math.pow(f, c));
 			}
+			done += c;
 		}
+	}
+	
+	// bring every weight up to date before it is read as a whole
+	public void flushRegularization() {
+		if (!options.lazyReg || !options.useBatch || options.updateMode != UpdateMode.AdaGrad)
+			return;
 		
-		// traditional features
-		FeatureVector dt = null;
 		if (gamma > 0.0) {
-			dt = fd.getLabelFeatureDifference(gold, pred);
-			loss -= dt.dotProduct(params) * gamma;
-		}
-    	
-    	//Utils.Assert(Math.abs(loss - loss2) < 1e-6);
-		
-		// update
-		if (loss > 0) {
-			switch (options.updateMode) {
-			case AdaGrad:
-				if (gamma > 0.0) {
-					for (int i = 0, L = dt.size(); i < L; ++i) {
-						int x = dt.x(i);
-						double g = dt.value(i) * gamma;
-						sg[x] += g * g;
-						params[x] += adaAlpha / Math.sqrt(sg[x] + adaEps) * g;
-					}
-				}
-				
-				if (gamma < 1.0)
-					pn.updateAda();
-				
-				break;
-			case MIRA:
-				double l2norm = gamma < 1.0 ? pn.gradientl2Norm() * (1 - gamma) * (1 - gamma) : 0.0;
-				l2norm += gamma > 0.0 ? dt.Squaredl2NormUnsafe() * gamma * gamma : 0.0;
-				double alpha = loss / l2norm;
-		        //System.out.println(alpha + " " + l2norm);
-		        //Utils.block();
-				
-				if (gamma > 0.0) {
-					//System.out.println(alpha + " " + C);
-					//Utils.block();
-					double lr = Math.min(alpha, C);
-					for (int i = 0, L = dt.size(); i < L; ++i) {
-						int x = dt.x(i);
-						double g = dt.value(i) * gamma * (gold.lang == options.targetLang ? 5.0 : 1.0);
-						params[x] += lr * g;
-						total[x] += lr * updCnt * g;
-					}
+			openForWrite();
+			pipe.ff.featureIDSet.forEach(new TIntProcedure() {
+				@Override
+				public boolean execute(int i) {
+					applyDecay(i, updCnt);
+					lastUpdate.put(i, updCnt);
+					return true;
 				}
-				
-				if (gamma < 1.0)
-					pn.updateMIRA(alpha, updCnt, gold.lang == options.targetLang ? 5.0 : 1.0);
-		    		
-				break;
-			default:
-				break;
-			}
+			});
 		}
-		
-		return loss;
-	}	
+		if (gamma < 1.0)
+			pn.flushRegularization();
+	}
 	
+	// in place over featureIDSet, which holds every weight MIRA has updated;
+	// the replaced values are kept in back
 	public void averageParameters() {
-		back = params;
-		double[] avgParams = new double[size];
-		for (int i = 0; i < size; ++i) {
-			avgParams[i] = (params[i] * (updCnt+1) - total[i])/updCnt;			
-		}		
-		params = avgParams;
+		openForWrite();
+		avgIDs = pipe.ff.featureIDSet.toArray();
+		if (back == null || back.length < avgIDs.length)
+			back = new double[avgIDs.length];
+		for (int j = 0; j < avgIDs.length; ++j) {
+			int i = avgIDs[j];
+			back[j] = params.get(i);
+			params.set(i, (back[j] * (updCnt+1) - total.get(i))/updCnt);
+		}
 
 		pn.averageParameters(updCnt);
 	}
 	
 	public void unaverageParameters() {
-		params = back;
+		openForWrite();
+		for (int j = 0; j < avgIDs.length; ++j)
+			params.set(avgIDs[j], back[j]);
+		avgIDs = null;
 		pn.unaverageParameters();
 	}
 
 	public void clearTheta() 
 	{
-		params = new double[size];
-		total = new double[size];
+		openForWrite();
+		params.clear();
+		if (options.updateMode == UpdateMode.MIRA)
+			total.clear();
 	}
 	
 	public void printNorm() {
-		double norm = Utils.squaredSum(params);
+		double norm = params.squaredSum();
 		System.out.println("squared norm: " + norm);
 	}
 }
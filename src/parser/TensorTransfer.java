@@ -1,6 +1,14 @@
 package parser;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -22,10 +30,32 @@ public class TensorTransfer {
 	public Options options;
 	public DependencyPipe pipe;
 	public Parameters parameters;
+	public ArcFeatureCache featureCache;
+	public BasicArcPruner pruner;
 	
-    public void train(DependencyInstance[] lstTrain) throws IOException, CloneNotSupportedException, ClassNotFoundException {
+	static final int EVAL_BATCH_SIZE = 1000;	// sentences decoded at once in evaluateSet
+	
+    public void train(TrainingSource lstTrain) throws IOException, CloneNotSupportedException, ClassNotFoundException {
     	long start = 0, end = 0;
     	
+    	if (options.featureCacheDir != null)
+    		featureCache = ArcFeatureCache.open(options.featureCacheDir, this, lstTrain);
+    	
+    	if (options.pruning) {
+    		System.out.println("=============================================");
+    		System.out.printf(" Pruner training:%n");
+    		System.out.println("=============================================");
+    		
+    		start = System.currentTimeMillis();
+    		pruner = new BasicArcPruner(options);
+    		pruner.train(lstTrain);
+    		end = System.currentTimeMillis();
+    		
+    		System.out.printf("Pruner training took %d ms.%n", end-start);
+    		System.out.println("=============================================");
+    		System.out.println();
+    	}
+    	
     	if (options.initModel != null) {
     		System.out.println("init model");
             ObjectInputStream in = new ObjectInputStream(
@@ -91,6 +121,7 @@ public class TensorTransfer {
     		}
     		else
     			Utils.ThrowException("not implemented yet");
+    		parameters.pn.invalidateScores();
     		
             System.out.println();
     		end = System.currentTimeMillis();
@@ -132,11 +163,11 @@ public class TensorTransfer {
 		System.out.println();		    	
     }
 
-    public void trainIter(DependencyInstance[] lstTrain, boolean evalAndSave) throws IOException
+    public void trainIter(TrainingSource lstTrain, boolean evalAndSave) throws IOException
     {
     	DependencyDecoder decoder = DependencyDecoder.createDependencyDecoder(options);
     	
-    	int N = lstTrain.length;
+    	int N = lstTrain.size();
     	//int printPeriod = 10000 < N ? N/10 : 1000;
     	int printPeriod = 1000;
 
@@ -150,66 +181,43 @@ public class TensorTransfer {
     		double loss = 0.0;
     		start = System.currentTimeMillis();
                 		  
-    		int b = 0;
-    		for (int i = 0; i < N; ++i) {
-    			
-    			if ((i + 1) % printPeriod == 0) {
-					System.out.printf("  %d (time=%ds)", (i+1),
-						(System.currentTimeMillis()-start)/1000);
-					//System.out.println(parameters.nnW.tForward + " " + parameters.nnW.tGradient + " " + parameters.nnW.tNorm + " " + parameters.nnW.tUpdate);
-    			}
-
-    			DependencyInstance inst = lstTrain[i];
-       		    int n = inst.length;
-       		 
-    			FeatureData fd = new FeatureData(inst, this, true, true);
-    		    
-    		    DependencyInstance pred = decoder.decode(inst, fd);
-    		    
-        		int corr = 0;
-    		    for (int m = 1; m < n; ++m) {
-        			if (pred.heads[m] == inst.heads[m])
-        				corr++;
-    		    }
-    		    
-        		if (corr != n - 1) {
-        			if (!options.useBatch)
-        				loss += parameters.update(inst, pred, fd);
-        			else
-        				loss += parameters.addGradient(inst, pred, fd);
-                }
-
-        		acc += corr;
-        		tot += n - 1;    
-        		
-        		// predict label
-        		if (options.learnLabel) {
-        			pred.heads = inst.heads;
-        			fd.predictLabels(pred.heads, pred.deplbids);
-        			int la = 0;
-        		    for (int m = 1; m < n; ++m) {
-            			if (pred.deplbids[m] == inst.deplbids[m])
-            				la++;
-        		    }
-        			if (la != n-1) {
-        				if (!options.useBatch)
-        					loss += parameters.updateLabel(inst, pred, fd);
-        				else
-        					loss += parameters.addLabelGradient(inst, pred, fd);
-        			}
-        		}
-        		
-        		b++;
-        		if (b == options.batchSize) {
-        			//System.out.println("aaa");
-        			if (options.useBatch)
-        				parameters.batchUpdate(N);
-        			b = 0;
-        		}
+    		int[] stats = new int[2];
+    		if (pruner != null)
+    			pruner.resetStats();
+    		if (options.numThreads > 1 && !options.useBatch) {
+    			loss = trainIterHogwild(lstTrain, stats, start, printPeriod);
+    		}
+    		else if (options.numThreads > 1) {
+    			loss = trainIterParallelBatch(lstTrain, stats, start, printPeriod);
+    		}
+    		else {
+	    		int b = 0, i = 0;
+	    		for (DependencyInstance inst : lstTrain) {
+	    			
+	    			if ((i + 1) % printPeriod == 0) {
+						System.out.printf("  %d (time=%ds)", (i+1),
+							(System.currentTimeMillis()-start)/1000);
+						//System.out.println(parameters.nnW.tForward + " " + parameters.nnW.tGradient + " " + parameters.nnW.tNorm + " " + parameters.nnW.tUpdate);
+	    			}
+	
+	    			loss += trainInstance(inst, i++, decoder, stats);
+	        		
+	        		b++;
+	        		if (b == options.batchSize) {
+	        			//System.out.println("aaa");
+	        			if (options.useBatch)
+	        				parameters.batchUpdate(N);
+	        			b = 0;
+	        		}
+	    		}
     		}
+    		acc = stats[0];
+    		tot = stats[1];
     		System.out.printf("%n  Iter %d\tloss=%.4f\tacc=%.4f\t[%ds]%n", iIter+1, loss, acc/(tot+0.0),
     				(System.currentTimeMillis() - start)/1000);
+    		printPruningStats();
     		
+    		parameters.flushRegularization();
     		parameters.printNorm();
     		
     		
@@ -250,6 +258,205 @@ public class TensorTransfer {
     	
     }
 
+    private double trainInstance(DependencyInstance inst, int instId, DependencyDecoder decoder, int[] stats)
+    {
+    	return trainInstance(inst, instId, decoder, stats, null);
+    }
+    
+    // with grad != null, the gradient is accumulated in grad instead of
+    // parameters (in online mode, only the tensor gradient, in grad.pn)
+    private double trainInstance(DependencyInstance inst, int instId, DependencyDecoder decoder, int[] stats,
+    		BatchGradient grad)
+    {
+    	int n = inst.length;
+    	double loss = 0.0;
+    	
+		FeatureData fd = new FeatureData(inst, this, true, true, instId);
+	    
+	    DependencyInstance pred = decoder.decode(inst, fd);
+	    
+		int corr = 0;
+	    for (int m = 1; m < n; ++m) {
+			if (pred.heads[m] == inst.heads[m])
+				corr++;
+	    }
+	    
+		if (corr != n - 1) {
+			if (!options.useBatch)
+				loss += grad == null ? parameters.update(inst, pred, fd)
+						: parameters.update(inst, pred, fd, grad.pn);
+			else if (grad == null)
+				loss += parameters.addGradient(inst, pred, fd);
+			else
+				loss += parameters.addGradient(inst, pred, fd, grad);
+        }
+
+		stats[0] += corr;
+		stats[1] += n - 1;    
+		
+		// predict label
+		if (options.learnLabel) {
+			pred.heads = inst.heads;
+			fd.predictLabels(pred.heads, pred.deplbids);
+			int la = 0;
+		    for (int m = 1; m < n; ++m) {
+    			if (pred.deplbids[m] == inst.deplbids[m])
+    				la++;
+		    }
+			if (la != n-1) {
+				if (!options.useBatch)
+					loss += grad == null ? parameters.updateLabel(inst, pred, fd)
+							: parameters.updateLabel(inst, pred, fd, grad.pn);
+				else if (grad == null)
+					loss += parameters.addLabelGradient(inst, pred, fd);
+				else
+					loss += parameters.addLabelGradient(inst, pred, fd, grad);
+			}
+		}
+		
+		return loss;
+    }
+    
+    // Hogwild: workers pull sentences from a shared counter and update the
+    // shared parameters without waiting for each other; each one collects
+    // its tensor gradient in its own BatchGradient
+    private double trainIterHogwild(final TrainingSource lstTrain, int[] stats,
+    		final long start, final int printPeriod)
+    {
+    	final int N = lstTrain.size();
+    	final AtomicInteger next = new AtomicInteger(0);
+    	
+    	ExecutorService pool = Executors.newFixedThreadPool(options.numThreads);
+    	List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+    	for (int t = 0; t < options.numThreads; ++t) {
+    		results.add(pool.submit(new Callable<double[]>() {
+				@Override
+				public double[] call() {
+					DependencyDecoder decoder = DependencyDecoder.createDependencyDecoder(options);
+					BatchGradient grad = new BatchGradient(parameters);
+					int[] st = new int[2];
+					double loss = 0.0;
+					for (int i = next.getAndIncrement(); i < N; i = next.getAndIncrement()) {
+						if ((i + 1) % printPeriod == 0) {
+							System.out.printf("  %d (time=%ds)", (i+1),
+								(System.currentTimeMillis()-start)/1000);
+						}
+						loss += trainInstance(lstTrain.get(i), i, decoder, st, grad);
+					}
+					decoder.shutdown();
+					return new double[] {loss, st[0], st[1]};
+				}
+			}));
+    	}
+    	pool.shutdown();
+    	
+    	double loss = 0.0;
+    	try {
+	    	for (Future<double[]> f : results) {
+	    		double[] res = f.get();
+	    		loss += res[0];
+	    		stats[0] += (int) res[1];
+	    		stats[1] += (int) res[2];
+	    	}
+    	} catch (InterruptedException | ExecutionException e) {
+    		throw new RuntimeException(e);
+    	}
+    	
+    	return loss;
+    }
+
+    // Synchronous data-parallel mini-batches: every batch is split into
+    // contiguous slices, one per thread, whose gradients are merged by a tree
+    // reduction in a fixed order before a single batchUpdate. The result only
+    // depends on the number of threads.
+    private double trainIterParallelBatch(final TrainingSource lstTrain, int[] stats,
+    		long start, int printPeriod)
+    {
+    	final int N = lstTrain.size();
+    	final int T = options.numThreads;
+    	
+    	final BatchGradient[] grads = new BatchGradient[T];
+    	final DependencyDecoder[] decoders = new DependencyDecoder[T];
+    	final int[][] sliceStats = new int[T][2];
+    	final double[] sliceLoss = new double[T];
+    	for (int t = 0; t < T; ++t) {
+    		grads[t] = new BatchGradient(parameters);
+    		decoders[t] = DependencyDecoder.createDependencyDecoder(options);
+    	}
+    	
+    	ExecutorService pool = Executors.newFixedThreadPool(T);
+    	List<Future<?>> tasks = new ArrayList<Future<?>>();
+    	
+    	double loss = 0.0;
+    	for (int s = 0; s < N; s += options.batchSize) {
+    		final int batchStart = s;
+    		final int batchEnd = Math.min(N, s + options.batchSize);
+    		
+    		if (batchEnd / printPeriod > batchStart / printPeriod) {
+				System.out.printf("  %d (time=%ds)", batchEnd / printPeriod * printPeriod,
+					(System.currentTimeMillis()-start)/1000);
+    		}
+    		
+    		tasks.clear();
+    		for (int t = 0; t < T; ++t) {
+    			final int id = t;
+    			tasks.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						int L = batchEnd - batchStart;
+						int st = batchStart + (int) ((long) L * id / T);
+						int ed = batchStart + (int) ((long) L * (id + 1) / T);
+						sliceLoss[id] = 0.0;
+						for (int i = st; i < ed; ++i)
+							sliceLoss[id] += trainInstance(lstTrain.get(i), i, decoders[id], sliceStats[id], grads[id]);
+					}
+				}));
+    		}
+    		waitFor(tasks);
+    		
+    		// tree reduction
+    		for (int step = 1; step < T; step *= 2) {
+    			tasks.clear();
+    			for (int t = 0; t + step < T; t += 2 * step) {
+    				final int a = t, b = t + step;
+    				tasks.add(pool.submit(new Runnable() {
+						@Override
+						public void run() {
+							grads[a].merge(grads[b]);
+							sliceLoss[a] += sliceLoss[b];
+						}
+					}));
+    			}
+    			waitFor(tasks);
+    		}
+    		
+    		loss += sliceLoss[0];
+    		parameters.addBatchGradient(grads[0]);
+    		// a trailing partial batch is kept for the next update, as in the sequential loop
+    		if (batchEnd - batchStart == options.batchSize)
+    			parameters.batchUpdate(N);
+    	}
+    	pool.shutdown();
+    	
+    	for (int t = 0; t < T; ++t) {
+    		stats[0] += sliceStats[t][0];
+    		stats[1] += sliceStats[t][1];
+    		decoders[t].shutdown();
+    	}
+    	
+    	return loss;
+    }
+    
+    private void waitFor(List<Future<?>> tasks)
+    {
+    	try {
+    		for (Future<?> f : tasks)
+    			f.get();
+    	} catch (InterruptedException | ExecutionException e) {
+    		throw new RuntimeException(e);
+    	}
+    }
+
     public double evaluateSet(int target, boolean evalWithPunc, boolean isDev)
     		throws IOException {
     	DependencyReader reader = DependencyReader.createDependencyReader(options, target);
@@ -264,29 +471,37 @@ public class TensorTransfer {
     		writer.startWriting(options.outFile);
     	}
 
-    	DependencyDecoder decoder = DependencyDecoder.createDependencyDecoder(options);   	
+    	DependencyDecoder decoder = DependencyDecoder.createBatchDecoder(options);   	
     	
     	Evaluator eval = new Evaluator(options, pipe);
+    	if (pruner != null)
+    		pruner.resetStats();
     	
 		long start = System.currentTimeMillis();
     	
+    	// read and decode in chunks; the reader and writer stay on this thread
+    	List<DependencyInstance> batch = new ArrayList<DependencyInstance>();
     	DependencyInstance inst = pipe.createInstance(reader);    	
     	while (inst != null) {
-    		FeatureData fd = new FeatureData(inst, this, true, false);
-            DependencyInstance predInst = decoder.decode(inst, fd);
-            if (options.learnLabel) {
-            	fd.predictLabels(predInst.heads, predInst.deplbids);
-            }
-            
-            eval.add(inst, predInst, evalWithPunc);
+    		batch.add(inst);
+    		inst = pipe.createInstance(reader);
+    		if (inst != null && batch.size() < EVAL_BATCH_SIZE)
+    			continue;
     		
-    		if (writer != null) {
-    			inst.heads = predInst.heads;
-    			inst.deplbids = predInst.deplbids;
-    			writer.writeInstance(inst);
+    		List<DependencyInstance> preds = decoder.decodeBatch(batch, this);
+    		for (int i = 0; i < batch.size(); ++i) {
+    			DependencyInstance gold = batch.get(i);
+    			DependencyInstance predInst = preds.get(i);
+    			
+    			eval.add(gold, predInst, evalWithPunc);
+    			
+    			if (writer != null) {
+    				gold.heads = predInst.heads;
+    				gold.deplbids = predInst.deplbids;
+    				writer.writeInstance(gold);
+    			}
     		}
-
-    		inst = pipe.createInstance(reader);
+    		batch.clear();
     	}
     	
     	reader.close();
@@ -297,22 +512,30 @@ public class TensorTransfer {
     	System.out.printf("  UAS=%.6f\tLAS=%.6f\tCAS=%.6f\t[%.2fs]%n",
     			eval.UAS(), eval.LAS(), eval.CAS(),
     			(System.currentTimeMillis() - start)/1000.0);
+    	printPruningStats();
 
     	decoder.shutdown();
 
         return eval.UAS();
     }
     
+    // recall of the gold arcs kept by the pruner, since its last resetStats()
+    private void printPruningStats()
+    {
+    	if (options.pruning && pruner != null)
+    		pruner.printStats();
+    }
+    
     public void saveModel(String file) throws IOException 
     {
     	System.out.println("save model to " + file);
+    	parameters.flushRegularization();
     	ObjectOutputStream out = new ObjectOutputStream(
     			new GZIPOutputStream(new FileOutputStream(file)));
     	out.writeObject(pipe);
     	out.writeObject(parameters);
     	out.writeObject(options);
-    	//if (options.pruning && options.learningMode != LearningMode.Basic) 
-    	//	out.writeObject(pruner);
+    	out.writeObject(pruner);
     	out.close();
     }
 	
@@ -324,9 +547,12 @@ public class TensorTransfer {
         pipe = (DependencyPipe) in.readObject();
         parameters = (Parameters) in.readObject();
         options = (Options) in.readObject();
-        //if (options.pruning && options.learningMode != LearningMode.Basic)
-        	//pruner = (DependencyParser) in.readObject();
-        //	pruner = (BasicArcPruner) in.readObject();
+        // null if none was trained; older models end before it
+        try {
+        	pruner = (BasicArcPruner) in.readObject();
+        } catch (EOFException e) {
+        	pruner = null;
+        }
         pipe.options = options;
         parameters.options = options;        
         
@@ -510,12 +736,13 @@ public class TensorTransfer {
 			pipe.createAlphabets(pn);
 			pn.randomlyInit(1.0);
 			
-			DependencyInstance[] lstTrain = pipe.createInstances();
+			TrainingSource lstTrain = pipe.createTrainingSource();
 
 			Parameters parameters = new Parameters(options, pipe, pn);
 			parser.parameters = parameters;
 			
 			parser.train(lstTrain);
+			lstTrain.close();
 //			if (options.dev && options.learningMode != LearningMode.Basic) 
 //				parser.tuneSpeed();
             if (options.updateMode == UpdateMode.MIRA && options.MIRAAverage) 
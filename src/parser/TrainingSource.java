@@ -0,0 +1,201 @@
+package parser;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The training sentences, in training order. Sentence i is get(i), and i
+ * is also its id for the feature cache. Sources that do not keep all
+ * sentences in memory expect the passes over the data to be roughly
+ * sequential, as trainIter and its parallel variants are.
+ */
+public abstract class TrainingSource implements Iterable<DependencyInstance> {
+
+	public abstract int size();
+
+	public abstract DependencyInstance get(int i);
+
+	public void close() {}
+
+	@Override
+	public Iterator<DependencyInstance> iterator()
+	{
+		return new Iterator<DependencyInstance>() {
+			int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < size();
+			}
+
+			@Override
+			public DependencyInstance next() {
+				return get(i++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public static TrainingSource create(DependencyInstance[] insts)
+	{
+		return new ArraySource(insts);
+	}
+
+	/**
+	 * Sentences order[0], order[1], ... of corpus, in shards of
+	 * options.shardSize. Enough shards are kept for the concurrent reads of
+	 * the threaded trainers: a whole batch for the parallel batches, and
+	 * one shard per thread for Hogwild.
+	 */
+	public static TrainingSource create(BinaryCorpus corpus, int[] order, Options options)
+	{
+		int shardSize = options.shardSize;
+		int numKept = 2;
+		if (options.numThreads > 1 && options.useBatch)
+			numKept = (options.batchSize + shardSize - 1) / shardSize + 1;
+		else if (options.numThreads > 1)
+			numKept = options.numThreads + 1;
+		return new ShardedSource(corpus, order, shardSize, numKept);
+	}
+
+	/**
+	 * All sentences in memory.
+	 */
+	static class ArraySource extends TrainingSource {
+
+		DependencyInstance[] insts;
+
+		ArraySource(DependencyInstance[] insts)
+		{
+			this.insts = insts;
+		}
+
+		@Override
+		public int size()
+		{
+			return insts.length;
+		}
+
+		@Override
+		public DependencyInstance get(int i)
+		{
+			return insts[i];
+		}
+	}
+
+	/**
+	 * Sentences read from the mapped corpus cache in shards of consecutive
+	 * positions of the training order. The last numKept shards read are
+	 * kept, and the shard after the newest one is loaded by a background
+	 * thread while they are trained on; after the last shard, the first one
+	 * is prefetched for the next iteration.
+	 */
+	static class ShardedSource extends TrainingSource {
+
+		BinaryCorpus corpus;
+		int[] order;				// corpus index of each position
+		int shardSize, numShards;
+
+		DependencyInstance[][] kept;	// replaced oldest first
+		int[] keptShard;
+		int oldest;
+		Future<DependencyInstance[]> next;
+		int nextShard = -1;
+		ExecutorService loader;
+
+		ShardedSource(BinaryCorpus corpus, int[] order, int shardSize, int numKept)
+		{
+			this.corpus = corpus;
+			this.order = order;
+			this.shardSize = shardSize;
+			numShards = (order.length + shardSize - 1) / shardSize;
+			kept = new DependencyInstance[numKept][];
+			keptShard = new int[numKept];
+			Arrays.fill(keptShard, -1);
+			loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "shard-loader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		@Override
+		public int size()
+		{
+			return order.length;
+		}
+
+		@Override
+		public synchronized DependencyInstance get(int i)
+		{
+			int s = i / shardSize;
+			int k = find(s);
+			if (k >= 0)
+				return kept[k][i - s * shardSize];
+
+			DependencyInstance[] shard;
+			if (next != null && nextShard == s) {
+				try {
+					shard = next.get();
+				} catch (InterruptedException | ExecutionException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			else
+				shard = load(s);
+
+			kept[oldest] = shard;
+			keptShard[oldest] = s;
+			oldest = (oldest + 1) % kept.length;
+
+			nextShard = (s + 1) % numShards;
+			final int ns = nextShard;
+			next = find(ns) >= 0 ? null : loader.submit(new Callable<DependencyInstance[]>() {
+				@Override
+				public DependencyInstance[] call() {
+					return load(ns);
+				}
+			});
+
+			return shard[i - s * shardSize];
+		}
+
+		private int find(int s)
+		{
+			for (int k = 0; k < kept.length; ++k)
+				if (keptShard[k] == s)
+					return k;
+			return -1;
+		}
+
+		private DependencyInstance[] load(int s)
+		{
+			int st = s * shardSize, ed = Math.min(order.length, st + shardSize);
+			DependencyInstance[] shard = new DependencyInstance[ed - st];
+			for (int i = st; i < ed; ++i)
+				shard[i - st] = corpus.get(order[i]);
+			return shard;
+		}
+
+		@Override
+		public synchronized void close()
+		{
+			loader.shutdownNow();
+			kept = null;
+			next = null;
+		}
+	}
+}
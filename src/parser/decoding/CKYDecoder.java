@@ -4,66 +4,95 @@ import parser.DependencyInstance;
 import parser.FeatureData;
 import parser.Options;
 
+/**
+ * Eisner's algorithm. The chart is kept in flat arrays indexed by s*N+t,
+ * where s is the head side of the span; they are reused across sentences.
+ */
 public class CKYDecoder extends DependencyDecoder {
+
+	// incomplete (comp 0) and complete (comp 1) spans: best score and split
+	double[] score0, score1;
+	int[] split0, split1;
+	int[] stack;
+
 	public CKYDecoder(Options options) {
 		this.options = options;
 	}
-	
+
 	@Override
 	public DependencyInstance decode(DependencyInstance inst, FeatureData fd) {
 
 		int N = inst.length;
-		ParseForest pf = new ParseForest(N);
+		ensureCapacity(N);
+
 		for (int i = 0; i < N; ++i) {
-			pf.addItem(i, i, 1, i, -1, 0.0, null, null);
+			score1[i * N + i] = 0.0;
+			split1[i * N + i] = i;
 		}
-		
+
 		for (int l = 1; l < N; ++l)
 			for (int s = 0; s + l < N; ++s) {
-				
+
 				int t = s + l;
-				
+				int st = s * N + t, ts = t * N + s;
+
 				double arcST = fd.getArcScoreWithLoss(s, t); // arcScores[s][t];
 				double arcTS = fd.getArcScoreWithLoss(t, s); // arcScores[t][s];
-				
+
+				// the first split is always taken, later ones only if strictly better
+				double bestST = 0.0, bestTS = 0.0;
+				int rST = -1, rTS = -1;
 				for (int r = s; r < t; ++r) {
-					ParseForestItem x = pf.getItem(s, r, 1);
-					ParseForestItem y = pf.getItem(t, r+1, 1);
-					if (x == null || y == null) continue;
-					
-					pf.addItem(s, t, 0, r, -1,
-						arcST + x.score + y.score, x, y);
-					pf.addItem(t, s, 0, r, -1,
-						arcTS + x.score + y.score, x, y);
+					double x = score1[s * N + r];
+					double y = score1[t * N + r + 1];
+
+					double v = arcST + x + y;
+					if (rST < 0 || v > bestST) {
+						bestST = v;
+						rST = r;
+					}
+					v = arcTS + x + y;
+					if (rTS < 0 || v > bestTS) {
+						bestTS = v;
+						rTS = r;
+					}
 				}
-				
-				for (int r = s; r <= t; ++r) {	
-					
+				score0[st] = bestST;
+				split0[st] = rST;
+				score0[ts] = bestTS;
+				split0[ts] = rTS;
+
+				rST = -1;
+				rTS = -1;
+				for (int r = s; r <= t; ++r) {
+
 					if (r != s) {
-						ParseForestItem x = pf.getItem(s, r, 0);
-						ParseForestItem y = pf.getItem(r, t, 1);
-						if (x == null || y == null) continue;
-						
-						pf.addItem(s, t, 1, r, -1,
-							x.score + y.score, x, y);
+						double v = score0[s * N + r] + score1[r * N + t];
+						if (rST < 0 || v > bestST) {
+							bestST = v;
+							rST = r;
+						}
 					}
-					
+
 					if (r != t) {
-						ParseForestItem x = pf.getItem(r, s, 1);
-						ParseForestItem y = pf.getItem(t, r, 0);
-						if (x == null || y == null) continue;
-						
-						pf.addItem(t, s, 1, r, -1,
-							x.score + y.score, x, y);
+						double v = score1[r * N + s] + score0[t * N + r];
+						if (rTS < 0 || v > bestTS) {
+							bestTS = v;
+							rTS = r;
+						}
 					}
 				}
+				score1[st] = bestST;
+				split1[st] = rST;
+				score1[ts] = bestTS;
+				split1[ts] = rTS;
 			}
-		
+
 		DependencyInstance predInst = new DependencyInstance(inst);
 		predInst.heads = new int[N];
 		predInst.deplbids = new int[N];
-		pf.getBestParse(predInst);
-		
+		getBestParse(predInst, N);
+
 		if (options.learnLabel) {
 			for (int m = 1; m < N; ++m) {
 				predInst.deplbids[m] = fd.getBestLabel(predInst.heads[m], m);
@@ -71,74 +100,59 @@ public class CKYDecoder extends DependencyDecoder {
 		}
 
 		return predInst;
-		
-	}
-}
 
-
-class ParseForest {
-	
-	public ParseForestItem[][][][] chart;
-	public int K = 1;
-	public int N;
-	
-	public ParseForest(int N) {
-		chart = new ParseForestItem[N][N][2][K];
-		this.N = N;
 	}
-	
-	public void addItem(int s, int t, int comp, int r, int type, 
-			double value, ParseForestItem left, ParseForestItem right) {
-		
-		if (chart[s][t][comp][K-1] == null || value > chart[s][t][comp][K-1].score) {
-			ParseForestItem item = new ParseForestItem(s, t, comp, r, type, value, left, right);
-			
-			int i = K-1;
-			while (i > 0 && (chart[s][t][comp][i-1] == null || value > chart[s][t][comp][i-1].score)) {
-				chart[s][t][comp][i] = chart[s][t][comp][i-1];
-				--i;
-			}
-			chart[s][t][comp][i] = item;
+
+	private void ensureCapacity(int N) {
+		if (score0 == null || score0.length < N * N) {
+			score0 = new double[N * N];
+			score1 = new double[N * N];
+			split0 = new int[N * N];
+			split1 = new int[N * N];
+			stack = new int[3 * 3 * N];		// a tree has 3N-2 spans
 		}
 	}
-	
-	public ParseForestItem getItem(int s, int t, int comp) {
-		return chart[s][t][comp][0];
-	}
-	
-	public void getBestParse(DependencyInstance predInst) {
-		getDeps(predInst, chart[0][N-1][1][0]);
-	}
-	
-	private void getDeps(DependencyInstance predInst, ParseForestItem item) {
-		
-		if (item == null || item.s == item.t) return;
-		
-		getDeps(predInst, item.left);
-		getDeps(predInst, item.right);	
-		
-		if (item.comp != 1) {
-			predInst.heads[item.t] = item.s;
-			predInst.deplbids[item.t] = item.type; 
+
+	// walks the best tree from the complete span (0, N-1)
+	private void getBestParse(DependencyInstance predInst, int N) {
+
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = N - 1;
+		stack[top++] = 1;
+
+		while (top > 0) {
+			int comp = stack[--top];
+			int t = stack[--top];
+			int s = stack[--top];
+			if (s == t)
+				continue;
+
+			if (comp == 0) {
+				int r = split0[s * N + t];
+				predInst.heads[t] = s;
+				predInst.deplbids[t] = -1;
+				top = push(top, Math.min(s, t), r, 1);
+				top = push(top, Math.max(s, t), r + 1, 1);
+			}
+			else {
+				int r = split1[s * N + t];
+				if (s < t) {
+					top = push(top, s, r, 0);
+					top = push(top, r, t, 1);
+				}
+				else {
+					top = push(top, r, t, 1);
+					top = push(top, s, r, 0);
+				}
+			}
 		}
 	}
-}
 
-class ParseForestItem {
-	
-	int s, t, comp, r, type;
-	double score;
-	ParseForestItem left, right;
-	
-	public ParseForestItem(int s, int t, int comp, int r, int type,
-			double value, ParseForestItem left, ParseForestItem right) {
-		this.s = s;
-		this.t = t;
-		this.comp = comp;
-		this.r = r;
-		this.type = type;
-		this.score = value;
-		this.left = left;
-		this.right = right;		
+	private int push(int top, int s, int t, int comp) {
+		stack[top++] = s;
+		stack[top++] = t;
+		stack[top++] = comp;
+		return top;
 	}
 }
@@ -1,9 +1,14 @@
 package parser.decoding;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import parser.DependencyInstance;
 import parser.FeatureData;
 import parser.Options;
 import parser.Options.FeatureMode;
+import parser.Options.MSTDecoder;
+import parser.TensorTransfer;
 import utils.Utils;
 
 public abstract class DependencyDecoder {
@@ -19,7 +24,9 @@ public abstract class DependencyDecoder {
 		}
 		
 		if (options.featureMode == FeatureMode.Basic) {
-			if (!options.projective)
+			if (!options.projective && options.mstDecoder == MSTDecoder.Tarjan)
+				return new TarjanDecoder(options);
+			else if (!options.projective)
 				return new ChuLiuEdmondDecoder(options);
 			else
 				return new CKYDecoder(options);			
@@ -29,10 +36,44 @@ public abstract class DependencyDecoder {
 		return null;
 	}
     
+	/**
+	 * A decoder for decodeBatch, with a pool of options.numThreads workers
+	 * if there is more than one thread.
+	 */
+	public static DependencyDecoder createBatchDecoder(Options options)
+	{
+		if (options.numThreads > 1)
+			return new ParallelDecoder(options, options.numThreads);
+		else
+			return createDependencyDecoder(options);
+	}
+    
     public void shutdown()
     {
     }
 
 	public abstract DependencyInstance decode(DependencyInstance inst, FeatureData fd);
+	
+	/**
+	 * Decodes the sentences (including their labels) with the current
+	 * parameters of the model, and returns the predictions in input order.
+	 */
+	public List<DependencyInstance> decodeBatch(List<DependencyInstance> insts, TensorTransfer model)
+	{
+		List<DependencyInstance> preds = new ArrayList<DependencyInstance>(insts.size());
+		for (DependencyInstance inst : insts)
+			preds.add(decodeInstance(inst, model));
+		return preds;
+	}
+	
+	DependencyInstance decodeInstance(DependencyInstance inst, TensorTransfer model)
+	{
+		FeatureData fd = new FeatureData(inst, model, false, false);
+		DependencyInstance predInst = decode(inst, fd);
+		if (options.learnLabel) {
+			fd.predictLabels(predInst.heads, predInst.deplbids);
+		}
+		return predInst;
+	}
 
 }
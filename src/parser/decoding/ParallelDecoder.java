@@ -0,0 +1,77 @@
+package parser.decoding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import parser.DependencyInstance;
+import parser.FeatureData;
+import parser.Options;
+import parser.TensorTransfer;
+
+/**
+ * Decodes batches of sentences on a fixed pool of workers. Each worker has
+ * its own decoder and builds the FeatureData of its sentences itself.
+ */
+public class ParallelDecoder extends DependencyDecoder {
+	
+	DependencyDecoder[] decoders;
+	ExecutorService pool;
+	
+	public ParallelDecoder(Options options, int numThreads)
+	{
+		this.options = options;
+		decoders = new DependencyDecoder[numThreads];
+		for (int t = 0; t < numThreads; ++t)
+			decoders[t] = createDependencyDecoder(options);
+		pool = Executors.newFixedThreadPool(numThreads);
+	}
+
+	@Override
+	public DependencyInstance decode(DependencyInstance inst, FeatureData fd)
+	{
+		return decoders[0].decode(inst, fd);
+	}
+	
+	@Override
+	public List<DependencyInstance> decodeBatch(final List<DependencyInstance> insts,
+			final TensorTransfer model)
+	{
+		final DependencyInstance[] preds = new DependencyInstance[insts.size()];
+		final AtomicInteger next = new AtomicInteger(0);
+		
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		for (int t = 0; t < decoders.length; ++t) {
+			final DependencyDecoder decoder = decoders[t];
+			tasks.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = next.getAndIncrement(); i < preds.length; i = next.getAndIncrement())
+						preds[i] = decoder.decodeInstance(insts.get(i), model);
+				}
+			}));
+		}
+		
+		try {
+			for (Future<?> f : tasks)
+				f.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+		
+		return Arrays.asList(preds);
+	}
+	
+	@Override
+	public void shutdown()
+	{
+		pool.shutdown();
+		for (DependencyDecoder decoder : decoders)
+			decoder.shutdown();
+	}
+}
@@ -0,0 +1,252 @@
+package parser.decoding;
+
+import parser.DependencyInstance;
+import parser.FeatureData;
+import parser.Options;
+import utils.Utils;
+
+/**
+ * Maximum spanning arborescence by Tarjan's version of Chu-Liu-Edmonds:
+ * the incoming arcs of each (contracted) node are kept in a leftist heap
+ * with lazy cost offsets, and the contractions in a union-find that can
+ * be rolled back to expand the cycles again. O(n^2 log n) on the complete
+ * graph. All buffers are reused across sentences.
+ */
+public class TarjanDecoder extends DependencyDecoder {
+
+	// cost of a pruned root arc, so that a tree always exists
+	static final double PRUNED_COST = 1e100;
+
+	// arcs (head -> modifier) with cost = -score
+	int[] ea, eb;
+	double[] ew;
+
+	// leftist heaps of arcs
+	int[] left, right, rank;
+	double[] lazy;
+	int[] heap;				// [node], -1 if empty
+
+	// union-find with rollback: parent, or -size for a root
+	int[] uf;
+	int[] histNode, histVal;
+	int histNum;
+
+	int[] seen, path, queue, inArc;
+
+	// contracted cycles: representative, union-find time, arcs
+	int[] cycNode, cycTime, cycStart, cycEnd;
+	int[] cycArcs;
+
+	public TarjanDecoder(Options options) {
+		this.options = options;
+	}
+
+	@Override
+	public DependencyInstance decode(DependencyInstance inst, FeatureData fd) {
+
+		int N = inst.length;
+		ensureCapacity(N);
+
+		// incoming arcs of each modifier
+		int E = 0;
+		heap[0] = -1;
+		for (int m = 1; m < N; ++m) {
+			int k = 0;
+			for (int h = 0; h < N; ++h)
+				if (h != m) {
+					double va = fd.getArcScoreWithLoss(h, m);
+					if (va == Double.NEGATIVE_INFINITY && h != 0)
+						continue;
+					ea[E] = h;
+					eb[E] = m;
+					ew[E] = va == Double.NEGATIVE_INFINITY ? PRUNED_COST : -va;
+					left[E] = right[E] = -1;
+					rank[E] = 1;
+					lazy[E] = 0.0;
+					queue[k++] = E;
+					++E;
+				}
+			// merge pairwise, in linear time
+			while (k > 1) {
+				int p = 0;
+				for (int i = 0; i + 1 < k; i += 2)
+					queue[p++] = merge(queue[i], queue[i + 1]);
+				if ((k & 1) != 0)
+					queue[p++] = queue[k - 1];
+				k = p;
+			}
+			heap[m] = queue[0];
+		}
+
+		for (int i = 0; i < N; ++i) {
+			uf[i] = -1;
+			seen[i] = -1;
+		}
+		histNum = 0;
+		seen[0] = 0;
+
+		int cycNum = 0, cycArcNum = 0;
+		for (int s = 1; s < N; ++s) {
+			int u = s, qi = 0;
+			while (seen[u] < 0) {
+				int e = heap[u];
+				if (e < 0)
+					Utils.ThrowException("no spanning tree");
+				push(e);
+				if (find(ea[e]) == u) {
+					// inside a contracted cycle
+					heap[u] = pop(e);
+					continue;
+				}
+				lazy[e] -= ew[e];
+				heap[u] = pop(e);
+				queue[qi] = e;
+				path[qi++] = u;
+				seen[u] = s;
+				u = find(ea[e]);
+
+				if (seen[u] == s) {
+					// cycle: contract it into u
+					int cyc = -1, end = qi, time = histNum, w;
+					do {
+						w = path[--qi];
+						cyc = merge(cyc, heap[w]);
+					} while (join(u, w));
+					u = find(u);
+					heap[u] = cyc;
+					seen[u] = -1;
+
+					cycNode[cycNum] = u;
+					cycTime[cycNum] = time;
+					cycStart[cycNum] = cycArcNum;
+					for (int i = qi; i < end; ++i)
+						cycArcs[cycArcNum++] = queue[i];
+					cycEnd[cycNum] = cycArcNum;
+					++cycNum;
+				}
+			}
+			for (int i = 0; i < qi; ++i)
+				inArc[find(eb[queue[i]])] = queue[i];
+		}
+
+		// expand the cycles, the last contracted first
+		for (int c = cycNum - 1; c >= 0; --c) {
+			rollback(cycTime[c]);
+			int in = inArc[cycNode[c]];
+			for (int i = cycStart[c]; i < cycEnd[c]; ++i)
+				inArc[find(eb[cycArcs[i]])] = cycArcs[i];
+			inArc[find(eb[in])] = in;
+		}
+
+		DependencyInstance predInst = new DependencyInstance(inst);
+		predInst.heads = new int[N];
+		predInst.deplbids = new int[N];
+
+		for (int m = 1; m < N; ++m) {
+			int h = ea[inArc[m]];
+			predInst.heads[m] = h;
+			if (options.learnLabel) {
+				predInst.deplbids[m] = fd.getBestLabel(h, m);
+			}
+		}
+
+		return predInst;
+	}
+
+	private void ensureCapacity(int N) {
+		if (heap == null || heap.length < N) {
+			int E = N * N;
+			ea = new int[E];
+			eb = new int[E];
+			ew = new double[E];
+			left = new int[E];
+			right = new int[E];
+			rank = new int[E];
+			lazy = new double[E];
+
+			heap = new int[N];
+			uf = new int[N];
+			histNode = new int[2 * N];
+			histVal = new int[2 * N];
+			seen = new int[N];
+			path = new int[N];
+			queue = new int[N];
+			inArc = new int[N];
+			cycNode = new int[N];
+			cycTime = new int[N];
+			cycStart = new int[N];
+			cycEnd = new int[N];
+			cycArcs = new int[2 * N];
+		}
+	}
+
+	// applies the pending cost offset of arc e to it and its children
+	private void push(int e) {
+		double d = lazy[e];
+		if (d != 0.0) {
+			ew[e] += d;
+			if (left[e] >= 0)
+				lazy[left[e]] += d;
+			if (right[e] >= 0)
+				lazy[right[e]] += d;
+			lazy[e] = 0.0;
+		}
+	}
+
+	private int rank(int e) {
+		return e < 0 ? 0 : rank[e];
+	}
+
+	private int merge(int a, int b) {
+		if (a < 0)
+			return b;
+		if (b < 0)
+			return a;
+		push(a);
+		push(b);
+		if (ew[a] > ew[b]) {
+			int t = a; a = b; b = t;
+		}
+		right[a] = merge(right[a], b);
+		if (rank(left[a]) < rank(right[a])) {
+			int t = left[a]; left[a] = right[a]; right[a] = t;
+		}
+		rank[a] = rank(right[a]) + 1;
+		return a;
+	}
+
+	private int pop(int e) {
+		push(e);
+		return merge(left[e], right[e]);
+	}
+
+	private int find(int x) {
+		while (uf[x] >= 0)
+			x = uf[x];
+		return x;
+	}
+
+	private boolean join(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a == b)
+			return false;
+		if (uf[a] > uf[b]) {
+			int t = a; a = b; b = t;
+		}
+		histNode[histNum] = a;
+		histVal[histNum++] = uf[a];
+		histNode[histNum] = b;
+		histVal[histNum++] = uf[b];
+		uf[a] += uf[b];
+		uf[b] = a;
+		return true;
+	}
+
+	private void rollback(int t) {
+		while (histNum > t) {
+			--histNum;
+			uf[histNode[histNum]] = histVal[histNum];
+		}
+	}
+}
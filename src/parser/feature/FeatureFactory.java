@@ -3,6 +3,7 @@ package parser.feature;
 import static parser.feature.FeatureTemplate.Arc.numArcFeatBits;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 import gnu.trove.set.hash.TIntHashSet;
 import gnu.trove.set.hash.TLongHashSet;
@@ -15,6 +16,7 @@ import parser.tensor.LowRankParam;
 import parser.tensor.ParameterNode;
 import utils.Alphabet;
 import utils.FeatureVector;
+import utils.ScoringFeatureVector;
 import utils.TypologicalInfo;
 import utils.Utils;
 import utils.TypologicalInfo.TypoFeatureType;
@@ -812,7 +814,29 @@ public class FeatureFactory implements Serializable {
     public FeatureVector createArcFeatures(DependencyInstance inst, int h, int m) 
     {
     	FeatureVector fv = new FeatureVector(numArcFeats);
-    	
+    	createArcFeatures(inst, h, m, fv);
+    	return fv;
+    }
+    
+    private static final ThreadLocal<SentenceContext> contexts = new ThreadLocal<SentenceContext>() {
+    	@Override
+    	protected SentenceContext initialValue() {
+    		return new SentenceContext();
+    	}
+    };
+    
+    // per-token codes of the sentence, computed once and reused for all its arcs
+    SentenceContext getContext(DependencyInstance inst)
+    {
+    	SentenceContext ctx = contexts.get();
+    	if (ctx.pos != inst.postagids || ctx.lang != inst.lang || ctx.ff != this)
+    		ctx.init(this, inst);
+    	return ctx;
+    }
+    
+    // appends the arc features to fv
+    public void createArcFeatures(DependencyInstance inst, int h, int m, FeatureVector fv) 
+    {
     	//if (options.useSupervised && inst.lang == options.targetLang) {
     	//	addSupervisedFeatures(fv, inst, h, m, getBinnedDistance(h - m) + 1);
     	//}
@@ -824,24 +848,21 @@ public class FeatureFactory implements Serializable {
     		addBareFeatures(inst, h, m, fv);
     		addSelectiveFeatures(inst, h, m, fv);
     	}
-    	
-    	return fv;
     }
     
-    
     public void addDelexicalFeatures(DependencyInstance inst, int h, int m, FeatureVector fv) {
 	    long code = 0;
 		int[] pos = inst.postagids;
+		SentenceContext ctx = getContext(inst);
 		
 		int attDist = getBinnedDistance(h - m) + 1;
-		int n = inst.length;
 		
-		int HP = pos[h] + 1;
-		int MP = pos[m] + 1;
-		int HPp = (h > 0 ? pos[h - 1] : TOKEN_START) + 1;
-		int HPn = (h < n - 1 ? pos[h + 1] : TOKEN_END) + 1;
-		int MPp = (m > 0 ? pos[m - 1] : TOKEN_START) + 1;
-		int MPn = (m < n - 1 ? pos[m + 1] : TOKEN_END) + 1;
+		int HP = ctx.P[h];
+		int MP = ctx.P[m];
+		int HPp = ctx.Pp[h];
+		int HPn = ctx.Pn[h];
+		int MPp = ctx.Pp[m];
+		int MPn = ctx.Pn[m];
 		
     	code = createArcCodeP(Arc.ATTDIST, 0);
     	addArcFeature(code | attDist, fv);
@@ -893,10 +914,21 @@ public class FeatureFactory implements Serializable {
     	int large = Math.max(h, m);
     	int small = Math.min(h, m);
     	
-    	for (int i = small + 1; i < large; ++i) {
-    		int BP = pos[i] + 1;
-        	code = createArcCodePPP(Arc.HP_BP_MP, HP, BP, MP);
-        	addArcFeature(code, fv);
+    	if (ctx.useCounts(fv, small, large)) {
+    		// long arc: one feature per distinct tag in between, valued by its count
+    		for (int BP = 0; BP < ctx.posWidth; ++BP) {
+    			int k = ctx.countBetween(small, large, BP);
+    			if (k == 0) continue;
+            	code = createArcCodePPP(Arc.HP_BP_MP, HP, BP, MP);
+            	addArcFeature(code, k, fv);
+    		}
+    	}
+    	else {
+	    	for (int i = small + 1; i < large; ++i) {
+	    		int BP = pos[i] + 1;
+	        	code = createArcCodePPP(Arc.HP_BP_MP, HP, BP, MP);
+	        	addArcFeature(code, fv);
+	    	}
     	}
 
 		if (inst.wordVecIds[h] >= 0) {
@@ -944,16 +976,15 @@ public class FeatureFactory implements Serializable {
     public void addDelexicalCFFeatures(DependencyInstance inst, int h, int m, FeatureVector fv) {
 	    long code = 0;
 		int[] pos = inst.postagids;
+		SentenceContext ctx = getContext(inst);
 		
 		int attDist = getBinnedDistance(h - m) + 1;
-		int c = ((typo.getClass(inst.lang) + 1) << numArcFeatBits) << flagBits;
+		int c = ctx.c;
 		//int f = ((typo.getFamily(inst.lang) + typo.classNum + 1) << numArcFeatBits) << flagBits;
 
-		int typoVecDim = 1;
-		int[] f = new int[typoVecDim];
-		double[] v = new double[typoVecDim];
-		f[0] = ((typo.getFamily(inst.lang) + typo.classNum + 1) << numArcFeatBits) << flagBits;
-		v[0] = 1.0;
+		int[] f = ctx.f;
+		double[] v = ctx.v;
+		int typoVecDim = f.length;
 
 //		int typoVecDim = options.typoVecDim;
 //		int[] f = new int[options.typoVecDim];
@@ -961,15 +992,13 @@ public class FeatureFactory implements Serializable {
 //		for (int i = 0; i < options.typoVecDim; ++i) {
 //			f[i] = ((i + typo.classNum + 1) << numArcFeatBits) << flagBits;
 //		}
-
-		int n = inst.length;
 		
-		int HP = pos[h] + 1;
-		int MP = pos[m] + 1;
-		int HPp = (h > 0 ? pos[h - 1] : TOKEN_START) + 1;
-		int HPn = (h < n - 1 ? pos[h + 1] : TOKEN_END) + 1;
-		int MPp = (m > 0 ? pos[m - 1] : TOKEN_START) + 1;
-		int MPn = (m < n - 1 ? pos[m + 1] : TOKEN_END) + 1;
+		int HP = ctx.P[h];
+		int MP = ctx.P[m];
+		int HPp = ctx.Pp[h];
+		int HPn = ctx.Pn[h];
+		int MPp = ctx.Pp[m];
+		int MPn = ctx.Pn[m];
 		
     	code = createArcCodePP(Arc.ATTDIST, 0, 0);
     	addArcFeature(code | c | attDist, fv);
@@ -1090,13 +1119,25 @@ public class FeatureFactory implements Serializable {
     	int large = Math.max(h, m);
     	int small = Math.min(h, m);
     	
-    	for (int z = small + 1; z < large; ++z) {
-    		int BP = pos[z] + 1;
-        	code = createArcCodePPPP(Arc.HP_BP_MP, HP, BP, MP, 0);
-        	addArcFeature(code | c, fv);
-        	//addArcFeature(code | f, fv);
-        	for (int i = 0; i < typoVecDim; ++i)
-        		addArcFeature(code | f[i], v[i], fv);
+    	if (ctx.useCounts(fv, small, large)) {
+    		for (int BP = 0; BP < ctx.posWidth; ++BP) {
+    			int k = ctx.countBetween(small, large, BP);
+    			if (k == 0) continue;
+	        	code = createArcCodePPPP(Arc.HP_BP_MP, HP, BP, MP, 0);
+	        	addArcFeature(code | c, k, fv);
+	        	for (int i = 0; i < typoVecDim; ++i)
+	        		addArcFeature(code | f[i], k * v[i], fv);
+    		}
+    	}
+    	else {
+	    	for (int z = small + 1; z < large; ++z) {
+	    		int BP = pos[z] + 1;
+	        	code = createArcCodePPPP(Arc.HP_BP_MP, HP, BP, MP, 0);
+	        	addArcFeature(code | c, fv);
+	        	//addArcFeature(code | f, fv);
+	        	for (int i = 0; i < typoVecDim; ++i)
+	        		addArcFeature(code | f[i], v[i], fv);
+	    	}
     	}
 
 		if (inst.wordVecIds[h] >= 0) {
@@ -1376,8 +1417,15 @@ public class FeatureFactory implements Serializable {
     public FeatureVector createArcLabelFeatures(DependencyInstance inst, int h, int m, int label) 
     {
     	FeatureVector fv = new FeatureVector(numArcFeats);
+    	createArcLabelFeatures(inst, h, m, label, fv);
+    	return fv;
+    }
+    
+    // appends the arc label features to fv
+    public void createArcLabelFeatures(DependencyInstance inst, int h, int m, int label, FeatureVector fv) 
+    {
     	if (!options.learnLabel) 
-    		return fv;
+    		return;
     	
     	//if (options.useSupervised && inst.lang == options.targetLang) {
     	//	addSupervisedFeatures(fv, inst, h, m, getBinnedDistance(h - m) + 1, label + 1);
@@ -1390,24 +1438,22 @@ public class FeatureFactory implements Serializable {
     		addBareFeatures(inst, h, m, label + 1, fv);
     		addSelectiveFeatures(inst, h, m, label + 1, fv);
     	}
-    	
-    	return fv;
     }
     
     public void addDelexicalFeatures(DependencyInstance inst, int h, int m, int label, FeatureVector fv) {
 	    long code = 0;
 		int[] pos = inst.postagids;
+		SentenceContext ctx = getContext(inst);
 		
 		int tid = label << 4;
 		int attDist = getBinnedDistance(h - m) + 1;
-		int n = inst.length;
 		
-		int HP = pos[h] + 1;
-		int MP = pos[m] + 1;
-		int HPp = (h > 0 ? pos[h - 1] : TOKEN_START) + 1;
-		int HPn = (h < n - 1 ? pos[h + 1] : TOKEN_END) + 1;
-		int MPp = (m > 0 ? pos[m - 1] : TOKEN_START) + 1;
-		int MPn = (m < n - 1 ? pos[m + 1] : TOKEN_END) + 1;
+		int HP = ctx.P[h];
+		int MP = ctx.P[m];
+		int HPp = ctx.Pp[h];
+		int HPn = ctx.Pn[h];
+		int MPp = ctx.Pp[m];
+		int MPn = ctx.Pn[m];
 		
     	code = createArcCodeP(Arc.HP, HP) | tid;
     	addLabeledArcFeature(code, fv);
@@ -1459,10 +1505,20 @@ public class FeatureFactory implements Serializable {
     	int large = Math.max(h, m);
     	int small = Math.min(h, m);
     	
-    	for (int i = small + 1; i < large; ++i) {
-    		int BP = pos[i] + 1;
-        	code = createArcCodePPP(Arc.HP_BP_MP, HP, BP, MP) | tid;
-        	addLabeledArcFeature(code, fv);
+    	if (ctx.useCounts(fv, small, large)) {
+    		for (int BP = 0; BP < ctx.posWidth; ++BP) {
+    			int k = ctx.countBetween(small, large, BP);
+    			if (k == 0) continue;
+	        	code = createArcCodePPP(Arc.HP_BP_MP, HP, BP, MP) | tid;
+	        	addLabeledArcFeature(code, k, fv);
+    		}
+    	}
+    	else {
+	    	for (int i = small + 1; i < large; ++i) {
+	    		int BP = pos[i] + 1;
+	        	code = createArcCodePPP(Arc.HP_BP_MP, HP, BP, MP) | tid;
+	        	addLabeledArcFeature(code, fv);
+	    	}
     	}
 
 
@@ -1511,16 +1567,15 @@ public class FeatureFactory implements Serializable {
     public void addDelexicalCFFeatures(DependencyInstance inst, int h, int m, int label, FeatureVector fv) {
 	    long code = 0;
 		int[] pos = inst.postagids;
+		SentenceContext ctx = getContext(inst);
 		
 		int tid = label << 4;
 		int attDist = getBinnedDistance(h - m) + 1;
-		int c = ((typo.getClass(inst.lang) + 1) << numArcFeatBits) << flagBits;
+		int c = ctx.c;
 		
-		int typoVecDim = 1;
-		int[] f = new int[typoVecDim];
-		double[] v = new double[typoVecDim];
-		f[0] = ((typo.getFamily(inst.lang) + typo.classNum + 1) << numArcFeatBits) << flagBits;
-		v[0] = 1.0;
+		int[] f = ctx.f;
+		double[] v = ctx.v;
+		int typoVecDim = f.length;
 		
 //		int typoVecDim = options.typoVecDim;
 //		int[] f = new int[options.typoVecDim];
@@ -1529,14 +1584,12 @@ public class FeatureFactory implements Serializable {
 //			f[i] = ((i + typo.classNum + 1) << numArcFeatBits) << flagBits;
 //		}
 		
-		int n = inst.length;
-		
-		int HP = pos[h] + 1;
-		int MP = pos[m] + 1;
-		int HPp = (h > 0 ? pos[h - 1] : TOKEN_START) + 1;
-		int HPn = (h < n - 1 ? pos[h + 1] : TOKEN_END) + 1;
-		int MPp = (m > 0 ? pos[m - 1] : TOKEN_START) + 1;
-		int MPn = (m < n - 1 ? pos[m + 1] : TOKEN_END) + 1;
+		int HP = ctx.P[h];
+		int MP = ctx.P[m];
+		int HPp = ctx.Pp[h];
+		int HPn = ctx.Pn[h];
+		int MPp = ctx.Pp[m];
+		int MPn = ctx.Pn[m];
 		
     	code = createArcCodePP(Arc.HP, HP, 0) | tid;
     	addLabeledArcFeature(code | c, fv);
@@ -1657,14 +1710,26 @@ public class FeatureFactory implements Serializable {
     	int large = Math.max(h, m);
     	int small = Math.min(h, m);
     	
-    	for (int z = small + 1; z < large; ++z) {
-    		int BP = pos[z] + 1;
-        	code = createArcCodePPPP(Arc.HP_BP_MP, HP, BP, MP, 0) | tid;
-        	addLabeledArcFeature(code | c, fv);
-        	//addLabeledArcFeature(code | f, fv);
-        	for (int i = 0; i < typoVecDim; ++i)
-        		addArcFeature(code | f[i], v[i], fv);
-   		}
+    	if (ctx.useCounts(fv, small, large)) {
+    		for (int BP = 0; BP < ctx.posWidth; ++BP) {
+    			int k = ctx.countBetween(small, large, BP);
+    			if (k == 0) continue;
+	        	code = createArcCodePPPP(Arc.HP_BP_MP, HP, BP, MP, 0) | tid;
+	        	addLabeledArcFeature(code | c, k, fv);
+	        	for (int i = 0; i < typoVecDim; ++i)
+	        		addArcFeature(code | f[i], k * v[i], fv);
+    		}
+    	}
+    	else {
+	    	for (int z = small + 1; z < large; ++z) {
+	    		int BP = pos[z] + 1;
+	        	code = createArcCodePPPP(Arc.HP_BP_MP, HP, BP, MP, 0) | tid;
+	        	addLabeledArcFeature(code | c, fv);
+	        	//addLabeledArcFeature(code | f, fv);
+	        	for (int i = 0; i < typoVecDim; ++i)
+	        		addArcFeature(code | f[i], v[i], fv);
+	   		}
+    	}
    		
 		if (inst.wordVecIds[h] >= 0) {
 			double[] v2 = wv.getWordVec(inst.lang, inst.wordVecIds[h]);
@@ -2345,7 +2410,7 @@ public class FeatureFactory implements Serializable {
     			continue;
     		}
 
-   			double value = params.params[id];
+   			double value = params.params.get(id);
    			//if (hpn.isActive[head] && mpn.isActive[mod] && hcpn.isActive[hc] && mcpn.isActive[mc] && dpn.isActive[binDist]
    			//		&& (!options.learnLabel || lpn.isActive[label]))
    			Utils.Assert(hpn.isActive[head]);
@@ -2476,7 +2541,7 @@ public class FeatureFactory implements Serializable {
     			continue;
     		}
 
-   			double value = params.params[id];
+   			double value = params.params.get(id);
    			//if (hpn.isActive[head] && mpn.isActive[mod] && dpn.isActive[binDist]
    			//		&& (!options.learnLabel || lpn.isActive[label])) {
    			Utils.Assert(hpn.isActive[head]);
@@ -2515,7 +2580,7 @@ public class FeatureFactory implements Serializable {
     		int id = hashcode2int(code);
     		if (id < 0) continue;
     		
-    		double value = params.params[id];
+    		double value = params.params.get(id);
 
     		int binDist = (int) extractDistanceCode(code);
     		Utils.Assert(binDist >= 0);
@@ -3177,7 +3242,7 @@ public class FeatureFactory implements Serializable {
     		int id = hashcode2int(code);
     		if (id < 0) continue;
     		
-    		double value = params.params[id];
+    		double value = params.params.get(id);
 
     		int binDist = (int) extractDistanceCode(code);
     		Utils.Assert(binDist >= 0);
@@ -3776,3 +3841,71 @@ public class FeatureFactory implements Serializable {
     	}
     }
 }
+
+class SentenceContext {
+	
+	FeatureFactory ff;
+	int[] pos;
+	int lang;
+	
+	int[] P = new int[0];			// POS + 1 of each token, its left and right neighbours
+	int[] Pp = new int[0];
+	int[] Pn = new int[0];
+	
+	int c;							// typological class and family codes
+	int[] f = new int[1];
+	double[] v = new double[1];
+	
+	int posWidth;					// POS + 1 ranges in [0, posWidth)
+	int[] posCount = new int[0];	// posCount[i * posWidth + p]: number of tokens before i with POS + 1 == p
+	
+	void init(FeatureFactory ff, DependencyInstance inst)
+	{
+		this.ff = ff;
+		pos = inst.postagids;
+		lang = inst.lang;
+		int n = inst.length;
+		
+		if (P.length < n) {
+			P = new int[n];
+			Pp = new int[n];
+			Pn = new int[n];
+		}
+		posWidth = 1;
+		for (int i = 0; i < n; ++i) {
+			P[i] = pos[i] + 1;
+			Pp[i] = (i > 0 ? pos[i - 1] : ff.TOKEN_START) + 1;
+			Pn[i] = (i < n - 1 ? pos[i + 1] : ff.TOKEN_END) + 1;
+			posWidth = Math.max(posWidth, P[i] + 1);
+		}
+		
+		if (posCount.length < (n + 1) * posWidth)
+			posCount = new int[(n + 1) * posWidth];
+		Arrays.fill(posCount, 0, posWidth, 0);
+		for (int i = 0; i < n; ++i) {
+			System.arraycopy(posCount, i * posWidth, posCount, (i + 1) * posWidth, posWidth);
+			++posCount[(i + 1) * posWidth + P[i]];
+		}
+		
+		if (ff.typo != null) {
+			c = ((ff.typo.getClass(lang) + 1) << numArcFeatBits) << ff.flagBits;
+			f[0] = ((ff.typo.getFamily(lang) + ff.typo.classNum + 1) << numArcFeatBits) << ff.flagBits;
+			v[0] = 1.0;
+		}
+	}
+	
+	// A long arc can give its in-between tags as one entry per distinct tag
+	// valued by its count. This only holds when fv is just scored; stored
+	// vectors keep one entry per token since the online updates treat
+	// repeated entries separately.
+	boolean useCounts(FeatureVector fv, int small, int large)
+	{
+		return fv instanceof ScoringFeatureVector && large - small - 1 > posWidth;
+	}
+	
+	// number of tokens strictly between small and large with POS + 1 == p
+	int countBetween(int small, int large, int p)
+	{
+		return posCount[large * posWidth + p] - posCount[(small + 1) * posWidth + p];
+	}
+}
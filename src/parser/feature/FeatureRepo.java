@@ -310,6 +310,24 @@ public class FeatureRepo {
 		return posFv[p];
 	}
 	
+	// index and number of the vectors above, to key what is computed from them
+	public int getDDTypoKey(int binDist, int lang) {
+		return binDist * typo.langNum + lang;
+	}
+	
+	public int getContextKey(int pp, int np, int lang) {
+		return pp * posNum * typo.langNum + np * typo.langNum + lang;
+	}
+	
+	public int getContextKey(int pp, int np) {
+		return pp * posNum + np;
+	}
+	
+	public int numDDFv() { return ddFv.length; }
+	public int numContextFv() { return contextFv.length; }
+	public int numPOSFv() { return posFv.length; }
+	public int numLabelFv() { return labelFv.length + 1; }		// key of label l is l + 1
+	
 	public FeatureVector getSVOFv(int hp, int mp, int label, int binDist, int lang) {
     	if (hp != ff.POS_VERB || (mp != ff.POS_NOUN && mp != ff.POS_PRON) 
     			|| (label != ff.LABEL_SBJ && label != ff.LABEL_SBJPASS && label != ff.LABEL_DOBJ && label != ff.LABEL_IOBJ)) {
@@ -0,0 +1,181 @@
+package parser.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import parser.DependencyInstance;
+import parser.Options;
+
+/**
+ * Sentences parsed once and kept in columns: the tokens of all sentences
+ * (the root included) are stored back to back, and forms, tags and labels
+ * are ids into one table of interned strings. Sentence s occupies tokens
+ * [start[s], start[s+1]).
+ */
+public class Corpus {
+
+	String[] strings = new String[1024];
+	int numStrings;
+	HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+
+	int numSents, numTokens;
+	int[] start = new int[1025];
+	int[] lang = new int[1024];
+
+	int[] form = new int[1 << 16];
+	int[] pos = new int[1 << 16];
+	int[] deplb = new int[1 << 16];
+	int[] head = new int[1 << 16];
+
+	/**
+	 * Reads the training treebanks of all languages. The files are parsed
+	 * concurrently, one per task, and appended in language order, so the
+	 * corpus is the same as if they were read one after another.
+	 */
+	public static Corpus readTrain(final Options options, final String[] files) throws IOException
+	{
+		int numThreads = Math.max(1, Math.min(files.length, Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Corpus>> parts = new ArrayList<Future<Corpus>>();
+		for (int l = 0; l < files.length; ++l) {
+			final int lang = l;
+			parts.add(pool.submit(new Callable<Corpus>() {
+				@Override
+				public Corpus call() throws IOException {
+					return read(options, lang, files[lang]);
+				}
+			}));
+		}
+		pool.shutdown();
+		
+		Corpus corpus = new Corpus();
+		try {
+			for (int l = 0; l < files.length; ++l) {
+				System.out.print(" " + options.langString[l] + " ");
+				corpus.addAll(parts.get(l).get());
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e);
+		}
+		return corpus;
+	}
+	
+	static Corpus read(Options options, int lang, String file) throws IOException
+	{
+		Corpus corpus = new Corpus();
+		DependencyReader reader = DependencyReader.createDependencyReader(options, lang);
+		reader.startReading(file);
+		DependencyInstance inst = reader.nextInstance();
+		while (inst != null) {
+			corpus.add(inst);
+			inst = reader.nextInstance();
+		}
+		reader.close();
+		return corpus;
+	}
+
+	public void add(DependencyInstance inst)
+	{
+		int n = inst.length;
+		ensureCapacity(numSents + 1, numTokens + n);
+
+		for (int i = 0; i < n; ++i) {
+			int t = numTokens + i;
+			form[t] = intern(inst.forms[i]);
+			pos[t] = intern(inst.postags[i]);
+			deplb[t] = intern(inst.deplbs[i]);
+			head[t] = inst.heads[i];
+		}
+		lang[numSents] = inst.lang;
+		numTokens += n;
+		start[++numSents] = numTokens;
+	}
+
+	/**
+	 * Appends the sentences of c.
+	 */
+	public void addAll(Corpus c)
+	{
+		ensureCapacity(numSents + c.numSents, numTokens + c.numTokens);
+		
+		int[] ids = new int[c.numStrings];
+		for (int i = 0; i < c.numStrings; ++i)
+			ids[i] = intern(c.strings[i]);
+		for (int t = 0; t < c.numTokens; ++t) {
+			form[numTokens + t] = ids[c.form[t]];
+			pos[numTokens + t] = ids[c.pos[t]];
+			deplb[numTokens + t] = ids[c.deplb[t]];
+			head[numTokens + t] = c.head[t];
+		}
+		for (int s = 0; s < c.numSents; ++s) {
+			lang[numSents + s] = c.lang[s];
+			start[numSents + s + 1] = numTokens + c.start[s + 1];
+		}
+		numSents += c.numSents;
+		numTokens += c.numTokens;
+	}
+	
+	public int size()
+	{
+		return numSents;
+	}
+
+	/**
+	 * A new instance of sentence s, as the reader returned it.
+	 */
+	public DependencyInstance get(int s)
+	{
+		int st = start[s], n = start[s + 1] - st;
+		String[] forms = new String[n];
+		String[] postags = new String[n];
+		String[] deplbs = new String[n];
+		int[] heads = new int[n];
+		for (int i = 0; i < n; ++i) {
+			forms[i] = strings[form[st + i]];
+			postags[i] = strings[pos[st + i]];
+			deplbs[i] = strings[deplb[st + i]];
+			heads[i] = head[st + i];
+		}
+		return new DependencyInstance(lang[s], forms, postags, heads, deplbs);
+	}
+
+	private void ensureCapacity(int sents, int tokens)
+	{
+		if (sents >= lang.length) {
+			lang = Arrays.copyOf(lang, Math.max(lang.length * 2, sents + 1));
+			start = Arrays.copyOf(start, lang.length + 1);
+		}
+		if (tokens > form.length) {
+			int cap = Math.max(form.length * 2, tokens);
+			form = Arrays.copyOf(form, cap);
+			pos = Arrays.copyOf(pos, cap);
+			deplb = Arrays.copyOf(deplb, cap);
+			head = Arrays.copyOf(head, cap);
+		}
+	}
+	
+	private int intern(String s)
+	{
+		Integer id = stringIds.get(s);
+		if (id == null) {
+			if (numStrings == strings.length)
+				strings = Arrays.copyOf(strings, numStrings * 2);
+			id = numStrings;
+			strings[numStrings++] = s;
+			stringIds.put(s, id);
+		}
+		return id;
+	}
+}
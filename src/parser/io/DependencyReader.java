@@ -17,6 +17,8 @@ public abstract class DependencyReader {
 	public static DependencyReader createDependencyReader(Options options, int lang) {
 		Dataset dataset = options.dataset;
 		if (dataset == Dataset.CoNLL_UNI) {
+			if (options.mappedReader)
+				return new MappedConllUniReader(options, lang);
 			return new ConllUniReader(options, lang);
 		} else {
 			System.out.printf("!!!!! Unsupported file format: %s%n", dataset.name());
@@ -0,0 +1,215 @@
+package parser.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import parser.DependencyInstance;
+import parser.Options;
+import utils.Utils;
+
+/**
+ * CoNLL-U reader over a memory-mapped file. Lines are scanned for tabs in
+ * the byte buffer and only FORM, UPOSTAG, HEAD and DEPREL are decoded:
+ * HEAD is parsed in place, and the strings come from a table keyed by
+ * their bytes, so a form or tag seen before allocates nothing. Returns
+ * the same instances as ConllUniReader.
+ */
+public class MappedConllUniReader extends DependencyReader {
+
+	MappedByteBuffer buf;
+	int pos, size;
+	ByteStringTable table = new ByteStringTable();
+
+	// columns of the current sentence: FORM, UPOSTAG, DEPREL offsets and HEAD
+	int[] formSt = new int[64], formEd = new int[64];
+	int[] posSt = new int[64], posEd = new int[64];
+	int[] lbSt = new int[64], lbEd = new int[64];
+	int[] head = new int[64];
+	int[] tabs = new int[8];
+
+	public MappedConllUniReader(Options options, int lang) {
+		this.options = options;
+		this.lang = lang;
+	}
+
+	@Override
+	public void startReading(String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		FileChannel channel = raf.getChannel();
+		Utils.Assert(channel.size() <= Integer.MAX_VALUE);
+		buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		raf.close();
+		pos = 0;
+		size = buf.limit();
+	}
+
+	@Override
+	public void close() throws IOException {
+		buf = null;
+	}
+
+	@Override
+	public DependencyInstance nextInstance() throws IOException {
+
+		int length = 0;
+		while (pos < size) {
+			int st = pos, ed = st;
+			while (ed < size && buf.get(ed) != '\n' && buf.get(ed) != '\r')
+				++ed;
+			// next line
+			pos = ed;
+			if (pos < size && buf.get(pos) == '\r')
+				++pos;
+			if (pos < size && buf.get(pos) == '\n' && (pos == ed || buf.get(pos - 1) == '\r'))
+				++pos;
+
+			if (st == ed || buf.get(st) == '*')
+				break;
+			if (buf.get(st) == '#')
+				continue;
+
+			// tab offsets of the first eight columns
+			int numTabs = 0;
+			for (int i = st; i < ed && numTabs < 8; ++i)
+				if (buf.get(i) == '\t')
+					tabs[numTabs++] = i;
+			Utils.Assert(numTabs >= 7);
+
+			// multiword tokens have an ID range
+			boolean range = false;
+			for (int i = st; i < tabs[0]; ++i)
+				if (buf.get(i) == '-')
+					range = true;
+			if (range)
+				continue;
+
+			ensureCapacity(length + 1);
+			formSt[length] = tabs[0] + 1;
+			formEd[length] = tabs[1];
+			posSt[length] = tabs[2] + 1;
+			posEd[length] = tabs[3];
+			lbSt[length] = tabs[6] + 1;
+			lbEd[length] = numTabs > 7 ? tabs[7] : ed;
+			head[length] = parseInt(tabs[5] + 1, tabs[6]);
+			++length;
+		}
+
+		if (length == 0) return null;
+
+		String[] forms = new String[length + 1];
+		String[] postags = new String[length + 1];
+		String[] deplbs = new String[length + 1];
+		int[] heads = new int[length + 1];
+
+		forms[0] = "<root>";
+		postags[0] = "<root-POS>";
+		deplbs[0] = "<no-type>";
+		heads[0] = -1;
+
+		for (int i = 1; i < length + 1; ++i) {
+			forms[i] = table.get(buf, formSt[i - 1], formEd[i - 1]);
+			postags[i] = table.get(buf, posSt[i - 1], posEd[i - 1]);
+			heads[i] = head[i - 1];
+			deplbs[i] = table.get(buf, lbSt[i - 1], lbEd[i - 1]);
+		}
+
+		return new DependencyInstance(lang, forms, postags, heads, deplbs);
+	}
+
+	private int parseInt(int st, int ed) {
+		Utils.Assert(st < ed);
+		boolean neg = buf.get(st) == '-';
+		int v = 0;
+		for (int i = neg ? st + 1 : st; i < ed; ++i) {
+			int d = buf.get(i) - '0';
+			if (d < 0 || d > 9)
+				throw new NumberFormatException("bad HEAD at byte " + st);
+			v = v * 10 + d;
+		}
+		return neg ? -v : v;
+	}
+
+	private void ensureCapacity(int n) {
+		if (n > head.length) {
+			int cap = Math.max(n, head.length * 2);
+			formSt = Arrays.copyOf(formSt, cap);
+			formEd = Arrays.copyOf(formEd, cap);
+			posSt = Arrays.copyOf(posSt, cap);
+			posEd = Arrays.copyOf(posEd, cap);
+			lbSt = Arrays.copyOf(lbSt, cap);
+			lbEd = Arrays.copyOf(lbEd, cap);
+			head = Arrays.copyOf(head, cap);
+		}
+	}
+}
+
+/**
+ * Open addressing table from UTF-8 byte slices to their decoded strings.
+ */
+class ByteStringTable {
+
+	byte[][] keys = new byte[1024][];
+	String[] values = new String[1024];
+	int[] hashes = new int[1024];
+	int num;
+	byte[] scratch = new byte[256];
+
+	String get(MappedByteBuffer buf, int st, int ed) {
+		int n = ed - st;
+		int h = 1;
+		for (int i = st; i < ed; ++i)
+			h = 31 * h + buf.get(i);
+
+		int mask = keys.length - 1;
+		for (int k = h & mask; ; k = (k + 1) & mask) {
+			byte[] key = keys[k];
+			if (key == null)
+				break;
+			if (hashes[k] == h && key.length == n && equals(key, buf, st))
+				return values[k];
+		}
+
+		if (scratch.length < n)
+			scratch = new byte[Math.max(n, scratch.length * 2)];
+		for (int i = 0; i < n; ++i)
+			scratch[i] = buf.get(st + i);
+		String s = new String(scratch, 0, n, StandardCharsets.UTF_8);
+		put(Arrays.copyOf(scratch, n), s, h);
+		return s;
+	}
+
+	private boolean equals(byte[] key, MappedByteBuffer buf, int st) {
+		for (int i = 0; i < key.length; ++i)
+			if (key[i] != buf.get(st + i))
+				return false;
+		return true;
+	}
+
+	private void put(byte[] key, String s, int h) {
+		if (2 * (num + 1) > keys.length) {
+			byte[][] oldKeys = keys;
+			String[] oldValues = values;
+			int[] oldHashes = hashes;
+			keys = new byte[oldKeys.length * 2][];
+			values = new String[keys.length];
+			hashes = new int[keys.length];
+			num = 0;
+			for (int i = 0; i < oldKeys.length; ++i)
+				if (oldKeys[i] != null)
+					put(oldKeys[i], oldValues[i], oldHashes[i]);
+		}
+		int mask = keys.length - 1;
+		int k = h & mask;
+		while (keys[k] != null)
+			k = (k + 1) & mask;
+		keys[k] = key;
+		values[k] = s;
+		hashes[k] = h;
+		++num;
+	}
+}
@@ -0,0 +1,21 @@
+package parser.tensor;
+
+import utils.FeatureVector;
+
+class FeatureDataItem {
+	final FeatureVector fv;
+	final double[] score;
+	final int version;		// ParameterNode.version the score was computed with
+	
+	public FeatureDataItem(FeatureVector fv, double[] score)
+	{
+		this(fv, score, -1);
+	}
+	
+	public FeatureDataItem(FeatureVector fv, double[] score, int version)
+	{
+		this.fv = fv;
+		this.score = score;
+		this.version = version;
+	}
+}
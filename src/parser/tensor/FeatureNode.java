@@ -5,7 +5,6 @@ import parser.DependencyPipe;
 import parser.Options;
 import parser.Options.TensorMode;
 import parser.TensorTransfer;
-import utils.FeatureVector;
 import utils.Utils;
 
 public abstract class FeatureNode {
@@ -15,6 +14,9 @@ public abstract class FeatureNode {
 	public Options options;
 	public ParameterNode pn;
 	
+	// rows of getFactoredScores, reused by the sentences of a thread
+	private static final ThreadLocal<double[][]> factoredRows = new ThreadLocal<double[][]>();
+	
 	public static FeatureNode createFeatureNode(Options options, DependencyInstance inst, TensorTransfer model)
 	{
 		if (options.tensorMode == TensorMode.Threeway) {
@@ -40,16 +42,49 @@ public abstract class FeatureNode {
 	
 	public abstract double getScore(int h, int m, int label);
 	
-	public abstract double addGradient(int h, int m, int label, double val, ParameterNode pn);
-}
-
-class FeatureDataItem {
-	final FeatureVector fv;
-	final double[] score;
+	/**
+	 * Scores of all arcs (h, m), m > 0, h != m, without label, into
+	 * scores[h*n+m], skipping the arcs with isPruned[h*n+m] (isPruned may
+	 * be null). Nodes override it to share work between the arcs.
+	 */
+	public void getScores(double[] scores, boolean[] isPruned)
+	{
+		int n = inst.length;
+		for (int h = 0; h < n; ++h)
+			for (int m = 1; m < n; ++m)
+				if (h != m && (isPruned == null || !isPruned[h * n + m]))
+					scores[h * n + m] = getScore(h, m, -1);
+	}
 	
-	public FeatureDataItem(FeatureVector fv, double[] score)
+	/**
+	 * scores[h*n+m] = sum_r head[h][r] * dd[bin(h-m)][r] * mod[m][r].
+	 * The distance vector is folded into the head row once per bin, so an
+	 * arc costs one R-long dot product with its modifier row. Nodes that
+	 * use it compute their per-arc unlabeled score in the same order
+	 * (head * dd first), so getScore and getScores agree to the bit.
+	 */
+	protected void getFactoredScores(double[][] head, double[][] mod, double[][] dd, double[] scores,
+			boolean[] isPruned)
 	{
-		this.fv = fv;
-		this.score = score;
+		int n = inst.length;
+		int rank = dd[0].length;
+		double[][] w = factoredRows.get();
+		if (w == null || w.length < dd.length || w[0].length != rank) {
+			w = new double[dd.length][rank];
+			factoredRows.set(w);
+		}
+		for (int h = 0; h < n; ++h) {
+			double[] hs = head[h];
+			for (int b = 0; b < dd.length; ++b) {
+				double[] wb = w[b], db = dd[b];
+				for (int r = 0; r < rank; ++r)
+					wb[r] = hs[r] * db[r];
+			}
+			for (int m = 1; m < n; ++m)
+				if (h != m && (isPruned == null || !isPruned[h * n + m]))
+					scores[h * n + m] = Utils.dotsum(w[pipe.ff.getBinnedDistance(h - m)], mod[m]);
+		}
 	}
+	
+	public abstract double addGradient(int h, int m, int label, double val, ParameterNode pn);
 }
@@ -1,6 +1,6 @@
 package parser.tensor;
 
-import java.util.Arrays;
+import gnu.trove.map.hash.TLongObjectHashMap;
 
 import parser.DependencyInstance;
 import parser.Options;
@@ -22,10 +22,6 @@ public class HierarchicalFeatureNode extends FeatureNode {
 	
 	double[] typoScore;
 	double[] arcScore;
-	double[] finalScore;
-	double[] gScore;
-	double[] g2Score;
-	double[] g3Score;
 	
 	public static final double svoWeight = 1.0 / 3;
 	public static final double typoWeight = 1.0 / 3;
@@ -80,15 +76,11 @@ public class HierarchicalFeatureNode extends FeatureNode {
 			ParameterNode hpn = delexical.node[0];
 			ParameterNode mpn = delexical.node[1];
 			FeatureVector fv = pipe.fr.getContextFv(pp, np, inst.lang);
+			int key = pipe.fr.getContextKey(pp, np, inst.lang);
 			
 			Utils.Assert(hpn.rank == rank && mpn.rank == rank);
-			double[] headScore = new double[rank];
-			double[] modScore = new double[rank];
-			
-			for (int r = 0; r < rank; ++r) {
-				headScore[r] = fv.dotProduct(hpn.param[r]);
-				modScore[r] = fv.dotProduct(mpn.param[r]);
-			}
+			headContextData[i] = hpn.getCachedScore(key, pipe.fr.numContextFv(), fv);
+			modContextData[i] = mpn.getCachedScore(key, pipe.fr.numContextFv(), fv);
 			
 //			for (int z = 0; z < fv.size(); ++z) {
 //				Utils.Assert(hpn.isActive[fv.x(z)]);
@@ -96,9 +88,6 @@ public class HierarchicalFeatureNode extends FeatureNode {
 //					Utils.Assert(mpn.isActive[fv.x(z)]);
 //			}
 			
-			headContextData[i] = new FeatureDataItem(fv, headScore);
-			modContextData[i] = new FeatureDataItem(fv, modScore);
-			
 			// pos
 			hpn = options.learnLabel ? delexical.node[2].node[1].node[0] 
 					: delexical.node[2].node[0];
@@ -107,16 +96,8 @@ public class HierarchicalFeatureNode extends FeatureNode {
 			fv = pipe.fr.getPOSFv(p);
 			
 			Utils.Assert(hpn.rank == rank && mpn.rank == rank);
-			headScore = new double[rank];
-			modScore = new double[rank];
-			
-			for (int r = 0; r < rank; ++r) {
-				headScore[r] = fv.dotProduct(hpn.param[r]);
-				modScore[r] = fv.dotProduct(mpn.param[r]);
-			}
-			
-			headData[i] = new FeatureDataItem(fv, headScore);
-			modData[i] = new FeatureDataItem(fv, modScore);
+			headData[i] = hpn.getCachedScore(p, pipe.fr.numPOSFv(), fv);
+			modData[i] = mpn.getCachedScore(p, pipe.fr.numPOSFv(), fv);
 		}
 		
 		// direction and distance and typo
@@ -127,14 +108,11 @@ public class HierarchicalFeatureNode extends FeatureNode {
 		Utils.Assert(rank == dpn.rank);
 		for (int i = 0; i < 2 * d; ++i) {
 			FeatureVector fv = pipe.fr.getDDTypoFv(i, inst.lang);
-			double[] score = new double[rank];
-			for (int r = 0; r < rank; ++r) {
-				score[r] = fv.dotProduct(dpn.param[r]);
-			}
+			FeatureDataItem item = dpn.getCachedScore(pipe.fr.getDDTypoKey(i, inst.lang), pipe.fr.numDDFv(), fv);
 //			for (int z = 0; z < fv.size(); ++z) {
 //				Utils.Assert(dpn.isActive[fv.x(z)]);
 //			}
-			ddData[i] = new FeatureDataItem(fv, score);
+			ddData[i] = item;
 		}
 		
 		// label
@@ -145,63 +123,91 @@ public class HierarchicalFeatureNode extends FeatureNode {
 			labelData = new FeatureDataItem[labelNum];
 			for (int i = 0; i < labelNum; ++i) {
 				FeatureVector fv = pipe.fr.getLabelFv(i);
-				double[] score = new double[rank];
-				for (int r = 0; r < rank; ++r) {
-					score[r] = fv.dotProduct(lpn.param[r]);
-				}
-				labelData[i] = new FeatureDataItem(fv, score);
+				labelData[i] = lpn.getCachedScore(i + 1, pipe.fr.numLabelFv(), fv);
 			}
 			
 			// empty label
 			FeatureVector fv = pipe.fr.getLabelFv(-1);
-			double[] score = new double[rank];
-			for (int r = 0; r < rank; ++r) {
-				score[r] = fv.dotProduct(lpn.param[r]);
-			}
-			emptyLabelData = new FeatureDataItem(fv, score);
+			emptyLabelData = lpn.getCachedScore(0, pipe.fr.numLabelFv(), fv);
 		}
 		
 		// temporary array
 		typoScore = new double[rank];
 		arcScore = new double[rank];
-		finalScore = new double[rank];
-		gScore = new double[rank];
-		g2Score = new double[rank];
-		g3Score = new double[rank];
 	}
 
 	
 	@Override
 	public double getScore(int h, int m, int l) {
-		int hp = inst.postagids[h];
-		int mp = inst.postagids[m];
-		int binDist = pipe.ff.getBinnedDistance(h - m);
-		int lang = inst.lang;
+		double[] hcScore = headContextData[h].score;
+		double[] mcScore = modContextData[m].score;
+		double[] tScore = getTypoScore(h, m, l, typoScore, arcScore);
 		
-		double[] lexScore = null;
-		if (options.lexical) {
-			int rank = pn.rank;
-			int rank2 = options.extraR;
-			lexScore = new double[rank];
-			
-			double[] headLexicalScore = headLexicalData[h].score;
-			double[] modLexicalScore = modLexicalData[m].score;
-			for (int r = 0; r < rank; ++r) {
-				int st = r * rank2;
-				for (int r2 = 0; r2 < rank2; ++r2) {
-					lexScore[r] += headLexicalScore[st + r2] * modLexicalScore[st + r2];
+		//return Utils.prodSum(hcScore, mcScore, tScore);
+		if (options.lexical) 
+			return Utils.prodSum(getLexicalScore(h, m), hcScore, mcScore, tScore);
+		else
+			return Utils.prodSum(hcScore, mcScore, tScore);
+	}
+	
+	@Override
+	public void getScores(double[] scores, boolean[] isPruned) {
+		// the typological part only depends on the POS pair and the distance
+		int n = inst.length;
+		int rank = pn.rank;
+		TLongObjectHashMap<double[]> typoCache = new TLongObjectHashMap<double[]>();
+		for (int h = 0; h < n; ++h)
+			for (int m = 1; m < n; ++m) 
+				if (h != m && (isPruned == null || !isPruned[h * n + m])) {
+					long key = ((long) inst.postagids[h] << 40) | ((long) inst.postagids[m] << 16)
+							| pipe.ff.getBinnedDistance(h - m);
+					double[] tScore = typoCache.get(key);
+					if (tScore == null) {
+						tScore = getTypoScore(h, m, -1, new double[rank],
+								options.learnLabel ? new double[rank] : null);
+						typoCache.put(key, tScore);
+					}
+					
+					double[] hcScore = headContextData[h].score;
+					double[] mcScore = modContextData[m].score;
+					if (options.lexical) 
+						scores[h * n + m] = Utils.prodSum(getLexicalScore(h, m), hcScore, mcScore, tScore);
+					else
+						scores[h * n + m] = Utils.prodSum(hcScore, mcScore, tScore);
 				}
+	}
+	
+	private double[] getLexicalScore(int h, int m) {
+		int rank = pn.rank;
+		int rank2 = options.extraR;
+		double[] lexScore = new double[rank];
+		
+		double[] headLexicalScore = headLexicalData[h].score;
+		double[] modLexicalScore = modLexicalData[m].score;
+		for (int r = 0; r < rank; ++r) {
+			int st = r * rank2;
+			for (int r2 = 0; r2 < rank2; ++r2) {
+				lexScore[r] += headLexicalScore[st + r2] * modLexicalScore[st + r2];
 			}
 		}
-
-		double[] hcScore = headContextData[h].score;
-		double[] mcScore = modContextData[m].score;
+		return lexScore;
+	}
+	
+	/**
+	 * The head-modifier-distance (and label) part of the arc score, computed
+	 * into tBuf, or into aBuf when labels are learned.
+	 */
+	private double[] getTypoScore(int h, int m, int l, double[] tBuf, double[] aBuf) {
+		int hp = inst.postagids[h];
+		int mp = inst.postagids[m];
+		int binDist = pipe.ff.getBinnedDistance(h - m);
+		int lang = inst.lang;
 		
 		double[] hScore = headData[h].score;
 		double[] mScore = modData[m].score;
 		double[] ddScore = ddData[binDist].score;
 		//double[] tScore = Utils.dot(hScore, mScore, ddScore);
-		double[] tScore = Utils.dot_s(typoScore, hScore, mScore, ddScore);
+		double[] tScore = Utils.dot_s(tBuf, hScore, mScore, ddScore);
 		
 		ParameterNode delexical = options.lexical ? pn.node[1] : pn;
 		FeatureVector fv = pipe.fr.getTypoFv(hp, mp, binDist, lang);
@@ -214,7 +220,7 @@ public class HierarchicalFeatureNode extends FeatureNode {
 		if (options.learnLabel) {
 			double[] lScore = l < 0 ? emptyLabelData.score : labelData[l].score;
 			//double[] arcScore = Utils.dot(lScore, tScore);
-			double[] aScore = Utils.dot_s(arcScore, lScore, tScore);
+			double[] aScore = Utils.dot_s(aBuf, lScore, tScore);
 			fv = pipe.fr.getSVOFv(hp, mp, l, binDist, lang);
 			//Utils.Assert(fv.size() == 0);
 			ParameterNode apn = delexical.node[2];
@@ -222,12 +228,7 @@ public class HierarchicalFeatureNode extends FeatureNode {
 				aScore[r] += fv.dotProduct(apn.param[r]);
 			tScore = aScore;
 		}
-		
-		//return Utils.sum(Utils.dot(hcScore, mcScore, tScore));
-		if (options.lexical) 
-			return Utils.sum(Utils.dot_s(finalScore, lexScore, hcScore, mcScore, tScore));
-		else
-			return Utils.sum(Utils.dot_s(finalScore, hcScore, mcScore, tScore));
+		return tScore;
 	}
 	/*
 	@Override
@@ -282,10 +283,10 @@ public class HierarchicalFeatureNode extends FeatureNode {
 		
 		if (options.learnLabel) {
 			double[] labelScore = label[l].score;
-			return Utils.sum(Utils.dot(headScore, modScore, hcScore, mcScore, ddScore, labelScore));
+			return Utils.prodSum(headScore, modScore, hcScore, mcScore, ddScore, labelScore);
 		}
 		else {
-			return Utils.sum(Utils.dot(headScore, modScore, hcScore, mcScore, ddScore));
+			return Utils.prodSum(headScore, modScore, hcScore, mcScore, ddScore);
 		}
 	}
 */
@@ -339,9 +340,9 @@ public class HierarchicalFeatureNode extends FeatureNode {
 		// update h, m and dd
 		for (int r = 0, rank = pn.rank; r < rank; ++r) {
 			double g = val * hcScore[r] * mcScore[r] * (options.learnLabel ? lScore[r] : 1.0) * multiWeight;
-			hpn.dFV[r].addEntries(headData[h].fv, g * mScore[r] * ddScore[r]);
-			mpn.dFV[r].addEntries(modData[m].fv, g * hScore[r] * ddScore[r]);
-			dpn.dFV[r].addEntries(ddData[binDist].fv, g * hScore[r] * mScore[r]);
+			hpn.addGradient(r, headData[h].fv, g * mScore[r] * ddScore[r]);
+			mpn.addGradient(r, modData[m].fv, g * hScore[r] * ddScore[r]);
+			dpn.addGradient(r, ddData[binDist].fv, g * hScore[r] * mScore[r]);
 		}
 
 		if (options.learnLabel) {
@@ -350,28 +351,28 @@ public class HierarchicalFeatureNode extends FeatureNode {
 				double g = val * (hScore[r] * mScore[r] * ddScore[r] * multiWeight
 							+ tScore[r] * typoWeight)
 							* hcScore[r] * mcScore[r];
-				lpn.dFV[r].addEntries(labelData[label].fv, g);
+				lpn.addGradient(r, labelData[label].fv, g);
 			}
 			
 			// update svo
 			for (int r = 0, rank = pn.rank; r < rank; ++r) {
 				double g = val * hcScore[r] * mcScore[r] * svoWeight;
-				apn.dFV[r].addEntries(afv, g);
+				apn.addGradient(r, afv, g);
 			}
 		}
 		
 		// update typo
 		for (int r = 0, rank = pn.rank; r < rank; ++r) {
 			double g = val * hcScore[r] * mcScore[r] * (options.learnLabel ? lScore[r] : 1.0) * typoWeight;
-			tpn.dFV[r].addEntries(tfv, g);
+			tpn.addGradient(r, tfv, g);
 		}
 		
 		// update hc and mc
 		for (int r = 0, rank = pn.rank; r < rank; ++r) {
 			double g = val * ((hScore[r] * mScore[r] * ddScore[r] * multiWeight + tScore[r] * typoWeight)
 					* (options.learnLabel ? lScore[r] : 1.0) + (options.learnLabel ? aScore[r] * svoWeight : 0.0));
-			hcpn.dFV[r].addEntries(headContextData[h].fv, g * mcScore[r]);
-			mcpn.dFV[r].addEntries(modContextData[m].fv, g * hcScore[r]);
+			hcpn.addGradient(r, headContextData[h].fv, g * mcScore[r]);
+			mcpn.addGradient(r, modContextData[m].fv, g * hcScore[r]);
 		}
 		
 		return score;
@@ -385,19 +386,12 @@ public class HierarchicalFeatureNode extends FeatureNode {
 		int binDist = pipe.ff.getBinnedDistance(h - m);
 		int lang = inst.lang;
 		
-		double[] v = new double[pn.rank];
-		Arrays.fill(v, val);
-		
-		double[] g = null; 
-
 		double[] hcScore = headContextData[h].score;
 		double[] mcScore = modContextData[m].score;
 		
 		double[] hScore = headData[h].score;
 		double[] mScore = modData[m].score;
 		double[] ddScore = ddData[binDist].score;
-		//double[] tScore = Utils.dot(hScore, mScore, ddScore);
-		double[] tScore = Utils.dot_s(typoScore, hScore, mScore, ddScore);
 		
 		ParameterNode delexical = options.lexical ? pn.node[1] : pn;
 		ParameterNode hcpn = delexical.node[0];
@@ -409,234 +403,87 @@ public class HierarchicalFeatureNode extends FeatureNode {
 		ParameterNode mpn = tpn.node[1];
 		ParameterNode dpn = tpn.node[2];
 
-		double[] lexScore = null;
 		ParameterNode hlpn = options.lexical ? pn.node[0].node[0] : null;
 		ParameterNode mlpn = options.lexical ? pn.node[0].node[1] : null;
 		double[] headLexicalScore = options.lexical ? headLexicalData[h].score : null;
 		double[] modLexicalScore = options.lexical ? modLexicalData[m].score : null;
-		
-		if (options.lexical) {
-			int rank = pn.rank;
-			int rank2 = options.extraR;
-			lexScore = new double[rank];
-			
-			for (int r = 0; r < rank; ++r) {
-				int st = r * rank2;
-				for (int r2 = 0; r2 < rank2; ++r2) {
-					lexScore[r] += headLexicalScore[st + r2] * modLexicalScore[st + r2];
-				}
-			}
-		}
+		int rank2 = options.extraR;
 
 		FeatureVector tfv = pipe.fr.getTypoFv(hp, mp, binDist, lang);
 		//Utils.Assert(tfv.size() == 0);
-		for (int r = 0; r < tpn.rank; ++r) {
-			tScore[r] += tfv.dotProduct(tpn.param[r]);
-		}
 		
+		// per-rank coefficients, multiplied in the order of the Utils.dot
+		// temporaries the gradient used to be built from
+		double sum = 0.0;
 		if (options.learnLabel) {
 			double[] lScore = label < 0 ? emptyLabelData.score : labelData[label].score;
-			//double[] aScore = Utils.dot(lScore, tScore);
-			double[] aScore = Utils.dot_s(arcScore, lScore, tScore);
+			FeatureVector lfv = label < 0 ? emptyLabelData.fv : labelData[label].fv;
 			FeatureVector afv = pipe.fr.getSVOFv(hp, mp, label, binDist, lang);
 			//Utils.Assert(afv.size() == 0);
-			for (int r = 0; r < apn.rank; ++r)
-				aScore[r] += afv.dotProduct(apn.param[r]);
 			
-			if (options.lexical) {
-				int rank = pn.rank;
-				int rank2 = options.extraR;
-
-				for (int r = 0; r < rank; ++r) {
-					double tmp = v[r] * hcScore[r] * mcScore[r] * aScore[r];
+			for (int r = 0; r < pn.rank; ++r) {
+				double hc = hcScore[r], mc = mcScore[r];
+				double hs = hScore[r], ms = mScore[r], dd = ddScore[r], ls = lScore[r];
+				double t = hs * ms * dd + tfv.dotProduct(tpn.param[r]);
+				double a = ls * t + afv.dotProduct(apn.param[r]);
+				
+				double g = val;
+				if (options.lexical) {
+					double tmp = val * hc * mc * a;
+					double lex = 0.0;
 					int st = r * rank2;
 					for (int r2 = 0; r2 < rank2; ++r2) {
-						// update head lexical
-						double dv = tmp * modLexicalScore[st + r2];
-						hlpn.dFV[st + r2].addEntries(headLexicalData[h].fv, dv);
+						double hl = headLexicalScore[st + r2];
+						double ml = modLexicalScore[st + r2];
+						lex += hl * ml;
 						
-						// update mod lexical
-						dv = tmp * headLexicalScore[st + r2];
-						mlpn.dFV[st + r2].addEntries(modLexicalData[m].fv, dv);
+						// update head/mod lexical
+						hlpn.addGradient(st + r2, headLexicalData[h].fv, tmp * ml);
+						mlpn.addGradient(st + r2, modLexicalData[m].fv, tmp * hl);
 					}
+					g *= lex;
 				}
+				
+				// update head/mod context and svo
+				hcpn.addGradient(r, headContextData[h].fv, g * mc * a);
+				mcpn.addGradient(r, modContextData[m].fv, g * hc * a);
+				g = g * hc * mc;
+				apn.addGradient(r, afv, g);
+				
+				// update label and typo
+				lpn.addGradient(r, lfv, g * t);
+				double g2 = g * ls;
+				tpn.addGradient(r, tfv, g2);
+				
+				// update head, mod and dd
+				hpn.addGradient(r, headData[h].fv, g2 * ms * dd);
+				mpn.addGradient(r, modData[m].fv, g2 * hs * dd);
+				dpn.addGradient(r, ddData[binDist].fv, g2 * hs * ms);
+				
+				sum += hc * mc * a;
 			}
-
-			// update head context
-			//g = Utils.dot(v, mcScore, aScore);
-			g = options.lexical ? Utils.dot_s(gScore, v, lexScore, mcScore, aScore)
-					: Utils.dot_s(gScore, v, mcScore, aScore);
-			for (int r = 0; r < hcpn.rank; ++r) {
-				hcpn.dFV[r].addEntries(headContextData[h].fv, g[r]);
-			}
-			
-			// update mod context
-			//g = Utils.dot(v, hcScore, aScore);
-			g = options.lexical ? Utils.dot_s(gScore, v, lexScore, hcScore, aScore)
-					: Utils.dot_s(gScore, v, hcScore, aScore);
-			for (int r = 0; r < mcpn.rank; ++r) {
-				mcpn.dFV[r].addEntries(modContextData[m].fv, g[r]);
-			}
-			
-			// update svo
-			//g = Utils.dot(v, hcScore, mcScore);
-			g = options.lexical ? Utils.dot_s(gScore, v, lexScore, hcScore, mcScore)
-					: Utils.dot_s(gScore, v, hcScore, mcScore);
-			for (int r = 0; r < apn.rank; ++r) {
-				apn.dFV[r].addEntries(afv, g[r]);
-			}
-			
-			// update label
-			//double[] g2 = Utils.dot(g, tScore);
-			double[] g2 = Utils.dot_s(g2Score, g, tScore);
-			for (int r = 0; r < lpn.rank; ++r) {
-				FeatureVector fv = label < 0 ? emptyLabelData.fv : labelData[label].fv;
-				lpn.dFV[r].addEntries(fv, g2[r]);
-			}
-			
-			// update typo
-			//g2 = Utils.dot(g, lScore);
-			g2 = Utils.dot_s(g2Score, g, lScore);
-			for (int r = 0; r < tpn.rank; ++r) {
-				tpn.dFV[r].addEntries(tfv, g2[r]);
-			}
-			
-			// update head
-			//double[] g3 = Utils.dot(g2, mScore, ddScore);
-			double[] g3 = Utils.dot_s(g3Score, g2, mScore, ddScore);
-			for (int r = 0; r < hpn.rank; ++r) {
-				hpn.dFV[r].addEntries(headData[h].fv, g3[r]);
-			}
-			
-			// update mod
-			//g3 = Utils.dot(g2, hScore, ddScore);
-			g3 = Utils.dot_s(g3Score, g2, hScore, ddScore);
-			for (int r = 0; r < mpn.rank; ++r) {
-				mpn.dFV[r].addEntries(modData[m].fv, g3[r]);
-			}
-			
-			// update dd
-			//g3 = Utils.dot(g2, hScore, mScore);
-			g3 = Utils.dot_s(g3Score, g2, hScore, mScore);
-			for (int r = 0; r < dpn.rank; ++r) {
-				dpn.dFV[r].addEntries(ddData[binDist].fv, g3[r]);
-			}
-			
-			return Utils.sum(Utils.dot_s(finalScore, hcScore, mcScore, aScore));
 		}
 		else {
-			// update head context
-			g = Utils.dot(v, mcScore, tScore);
-			for (int r = 0; r < hcpn.rank; ++r) {
-				hcpn.dFV[r].addEntries(headContextData[h].fv, g[r]);
-			}
-			
-			// update mod context
-			g = Utils.dot(v, hcScore, tScore);
-			for (int r = 0; r < mcpn.rank; ++r) {
-				mcpn.dFV[r].addEntries(modContextData[m].fv, g[r]);
-			}
-			
-			// update typo
-			g = Utils.dot(v, hcScore, mcScore);
-			for (int r = 0; r < tpn.rank; ++r) {
-				tpn.dFV[r].addEntries(tfv, g[r]);
-			}
-			
-			// update head
-			double[] g2 = Utils.dot(g, mScore, ddScore);
-			for (int r = 0; r < hpn.rank; ++r) {
-				hpn.dFV[r].addEntries(headData[h].fv, g2[r]);
-			}
-			
-			// update mod
-			g2 = Utils.dot(g, hScore, ddScore);
-			for (int r = 0; r < mpn.rank; ++r) {
-				mpn.dFV[r].addEntries(modData[m].fv, g2[r]);
-			}
-			
-			// update dd
-			g2 = Utils.dot(g, hScore, mScore);
-			for (int r = 0; r < dpn.rank; ++r) {
-				dpn.dFV[r].addEntries(ddData[binDist].fv, g2[r]);
+			for (int r = 0; r < pn.rank; ++r) {
+				double hc = hcScore[r], mc = mcScore[r];
+				double hs = hScore[r], ms = mScore[r], dd = ddScore[r];
+				double t = hs * ms * dd + tfv.dotProduct(tpn.param[r]);
+				
+				// update head/mod context and typo
+				hcpn.addGradient(r, headContextData[h].fv, val * mc * t);
+				mcpn.addGradient(r, modContextData[m].fv, val * hc * t);
+				double g = val * hc * mc;
+				tpn.addGradient(r, tfv, g);
+				
+				// update head, mod and dd
+				hpn.addGradient(r, headData[h].fv, g * ms * dd);
+				mpn.addGradient(r, modData[m].fv, g * hs * dd);
+				dpn.addGradient(r, ddData[binDist].fv, g * hs * ms);
+				
+				sum += hc * mc * t;
 			}
-			
-			return Utils.sum(Utils.dot_s(finalScore, hcScore, mcScore, tScore));
 		}
+		return sum;
 	}
 
-/*	
-	@Override
-	public void addGradient(int h, int m, int l, double val, ParameterNode pn) {
-		// assume that dfv is already cleaned
-		
-		double[] headScore = head[h].score;
-		double[] modScore = mod[m].score;
-		double[] hcScore = headContext[h].score;
-		double[] mcScore = modContext[m].score;
-		double[] ddScore = dd[pipe.ff.getBinnedDistance(h - m)].score;
-		double[] lScore = options.learnLabel ? label[l].score : null;
-
-		ParameterNode hpn = pn.node[2].node[1].node[0];
-		ParameterNode mpn = pn.node[2].node[1].node[1];
-		ParameterNode hcpn = pn.node[0];
-		ParameterNode mcpn = pn.node[1];
-		ParameterNode dpn = pn.node[2].node[1].node[2];
-		ParameterNode lpn = options.learnLabel ? pn.node[2].node[0] : null;
-
-		int binDist = pipe.ff.getBinnedDistance(h - m);
-		double[] v = new double[pn.rank];
-		Arrays.fill(v, val);
-		
-		double[] g = null; 
-		
-		// update h
-		g = Utils.dot(v, modScore, hcScore, mcScore, ddScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < hpn.rank; ++r) {
-			hpn.dFV[r].addEntries(head[h].fv, g[r]);
-		}
-		
-		// update m
-		g = Utils.dot(v, headScore, hcScore, mcScore, ddScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < mpn.rank; ++r) {
-			mpn.dFV[r].addEntries(mod[m].fv, g[r]);
-		}
-		
-		// update hc
-		g = Utils.dot(v, mcScore, headScore, modScore, ddScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < hcpn.rank; ++r) {
-			hcpn.dFV[r].addEntries(headContext[h].fv, g[r]);
-		}
-		
-		// update mc
-		g = Utils.dot(v, hcScore, headScore, modScore, ddScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < mcpn.rank; ++r) {
-			mcpn.dFV[r].addEntries(modContext[m].fv, g[r]);
-		}
-		
-		// update dd
-		g = Utils.dot(v, headScore, modScore, hcScore, mcScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < dpn.rank; ++r) {
-			dpn.dFV[r].addEntries(dd[binDist].fv, g[r]);
-		}
-		
-		// update label
-		if (options.learnLabel) {
-			g = Utils.dot(v, headScore, modScore, hcScore, mcScore, ddScore);
-			for (int r = 0; r < lpn.rank; ++r) {
-				lpn.dFV[r].addEntries(label[l].fv, g[r]);
-			}
-		}
-	}
-*/
 }
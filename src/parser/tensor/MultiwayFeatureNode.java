@@ -1,7 +1,5 @@
 package parser.tensor;
 
-import java.util.Arrays;
-
 import parser.DependencyInstance;
 import parser.Options;
 import parser.TensorTransfer;
@@ -43,27 +41,16 @@ public class MultiwayFeatureNode extends FeatureNode {
 			ParameterNode mpn = pn.node[1];
 			FeatureVector fv = pipe.fr.getPOSFv(p);
 			Utils.Assert(rank == hpn.rank && rank == mpn.rank);
-			double[] headScore = new double[rank];
-			double[] modScore = new double[rank];
-			for (int r = 0; r < rank; ++r) {
-				headScore[r] = fv.dotProduct(hpn.param[r]);
-				modScore[r] = fv.dotProduct(mpn.param[r]);
-			}
-			headData[i] = new FeatureDataItem(fv, headScore);
-			modData[i] = new FeatureDataItem(fv, modScore);
+			headData[i] = hpn.getCachedScore(p, pipe.fr.numPOSFv(), fv);
+			modData[i] = mpn.getCachedScore(p, pipe.fr.numPOSFv(), fv);
 
 			hpn = pn.node[2];
 			mpn = pn.node[3];
 			fv = pipe.fr.getContextFv(pp, np);
+			int key = pipe.fr.getContextKey(pp, np);
 			Utils.Assert(rank == hpn.rank && rank == mpn.rank);
-			headScore = new double[rank];
-			modScore = new double[rank];
-			for (int r = 0; r < rank; ++r) {
-				headScore[r] = fv.dotProduct(hpn.param[r]);
-				modScore[r] = fv.dotProduct(mpn.param[r]);
-			}
-			headContextData[i] = new FeatureDataItem(fv, headScore);
-			modContextData[i] = new FeatureDataItem(fv, modScore);
+			headContextData[i] = hpn.getCachedScore(key, pipe.fr.numContextFv(), fv);
+			modContextData[i] = mpn.getCachedScore(key, pipe.fr.numContextFv(), fv);
 		}
 		
 		// direction and distance
@@ -73,11 +60,7 @@ public class MultiwayFeatureNode extends FeatureNode {
 		Utils.Assert(rank == dpn.rank);
 		for (int i = 0; i < 2 * d; ++i) {
 			FeatureVector fv = pipe.fr.getDDFv(i);
-			double[] score = new double[rank];
-			for (int r = 0; r < rank; ++r) {
-				score[r] = fv.dotProduct(dpn.param[r]);
-			}
-			ddData[i] = new FeatureDataItem(fv, score);
+			ddData[i] = dpn.getCachedScore(i, pipe.fr.numDDFv(), fv);
 		}
 		
 		// label
@@ -88,11 +71,7 @@ public class MultiwayFeatureNode extends FeatureNode {
 			Utils.Assert(rank == lpn.rank);
 			for (int i = 0; i < labelNum; ++i) {
 				FeatureVector fv = pipe.fr.getLabelFv(i);
-				double[] score = new double[rank];
-				for (int r = 0; r < rank; ++r) {
-					score[r] = fv.dotProduct(lpn.param[r]);
-				}
-				labelData[i] = new FeatureDataItem(fv, score);
+				labelData[i] = lpn.getCachedScore(i + 1, pipe.fr.numLabelFv(), fv);
 			}
 		}
 	}
@@ -107,16 +86,40 @@ public class MultiwayFeatureNode extends FeatureNode {
 		
 		if (options.learnLabel) {
 			double[] labelScore = labelData[label].score;
-			return Utils.sum(Utils.dot(headScore, modScore, hcScore, mcScore, ddScore, labelScore));
+			return Utils.prodSum(headScore, modScore, hcScore, mcScore, ddScore, labelScore);
 		}
 		else {
-			return Utils.sum(Utils.dot(headScore, modScore, hcScore, mcScore, ddScore));
+			// in the order of getFactoredScores
+			double sum = 0.0;
+			for (int r = 0; r < headScore.length; ++r)
+				sum += headScore[r] * hcScore[r] * ddScore[r] * (modScore[r] * mcScore[r]);
+			return sum;
+		}
+	}
+
+	@Override
+	public void getScores(double[] scores, boolean[] isPruned) {
+		if (options.learnLabel) {
+			super.getScores(scores, isPruned);
+			return;
+		}
+		
+		int n = inst.length;
+		double[][] head = new double[n][];
+		double[][] mod = new double[n][];
+		for (int i = 0; i < n; ++i) {
+			head[i] = Utils.dot(headData[i].score, headContextData[i].score);
+			mod[i] = Utils.dot(modData[i].score, modContextData[i].score);
 		}
+		double[][] dd = new double[ddData.length][];
+		for (int i = 0; i < dd.length; ++i)
+			dd[i] = ddData[i].score;
+		getFactoredScores(head, mod, dd, scores, isPruned);
 	}
 
 	@Override
 	public double addGradient(int h, int m, int label, double val, ParameterNode pn) {
-		// assume that dfv is already cleaned
+		// assume that the gradient is already cleaned
 		
 		double[] headScore = headData[h].score;
 		double[] modScore = modData[m].score;
@@ -133,65 +136,32 @@ public class MultiwayFeatureNode extends FeatureNode {
 		ParameterNode lpn = options.learnLabel ? pn.node[5] : null;
 
 		int binDist = pipe.ff.getBinnedDistance(h - m);
-		double[] v = new double[pn.rank];
-		Arrays.fill(v, val);
 		
-		double[] g = null; 
-		
-		// update h
-		g = Utils.dot(v, modScore, hcScore, mcScore, ddScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < hpn.rank; ++r) {
-			hpn.dFV[r].addEntries(headData[h].fv, g[r]);
-		}
-		
-		// update m
-		g = Utils.dot(v, headScore, hcScore, mcScore, ddScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < mpn.rank; ++r) {
-			mpn.dFV[r].addEntries(modData[m].fv, g[r]);
-		}
-		
-		// update hc
-		g = Utils.dot(v, mcScore, headScore, modScore, ddScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < hcpn.rank; ++r) {
-			hcpn.dFV[r].addEntries(headContextData[h].fv, g[r]);
-		}
-		
-		// update mc
-		g = Utils.dot(v, hcScore, headScore, modScore, ddScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < mcpn.rank; ++r) {
-			mcpn.dFV[r].addEntries(modContextData[m].fv, g[r]);
-		}
-		
-		// update dd
-		g = Utils.dot(v, headScore, modScore, hcScore, mcScore);
-		if (options.learnLabel)
-			g = Utils.dot(g, lScore);
-		for (int r = 0; r < dpn.rank; ++r) {
-			dpn.dFV[r].addEntries(ddData[binDist].fv, g[r]);
-		}
-		
-		// update label
-		if (options.learnLabel) {
-			g = Utils.dot(v, headScore, modScore, hcScore, mcScore, ddScore);
-			for (int r = 0; r < lpn.rank; ++r) {
-				lpn.dFV[r].addEntries(labelData[label].fv, g[r]);
-			}
+		for (int r = 0; r < pn.rank; ++r) {
+			double l = options.learnLabel ? lScore[r] : 1.0;
+			
+			// update h, m, hc, mc and dd
+			hpn.addGradient(r, headData[h].fv, val * modScore[r] * hcScore[r] * mcScore[r] * ddScore[r] * l);
+			mpn.addGradient(r, modData[m].fv, val * headScore[r] * hcScore[r] * mcScore[r] * ddScore[r] * l);
+			hcpn.addGradient(r, headContextData[h].fv, val * mcScore[r] * headScore[r] * modScore[r] * ddScore[r] * l);
+			mcpn.addGradient(r, modContextData[m].fv, val * hcScore[r] * headScore[r] * modScore[r] * ddScore[r] * l);
+			dpn.addGradient(r, ddData[binDist].fv, val * headScore[r] * modScore[r] * hcScore[r] * mcScore[r] * l);
+			
+			// update label
+			if (options.learnLabel)
+				lpn.addGradient(r, labelData[label].fv, val * headScore[r] * modScore[r] * hcScore[r] * mcScore[r] * ddScore[r]);
 		}
 		
 		if (options.learnLabel) {
 			double[] labelScore = labelData[label].score;
-			return Utils.sum(Utils.dot(headScore, modScore, hcScore, mcScore, ddScore, labelScore));
+			return Utils.prodSum(headScore, modScore, hcScore, mcScore, ddScore, labelScore);
 		}
 		else {
-			return Utils.sum(Utils.dot(headScore, modScore, hcScore, mcScore, ddScore));
+			// in the order of getFactoredScores
+			double sum = 0.0;
+			for (int r = 0; r < headScore.length; ++r)
+				sum += headScore[r] * hcScore[r] * ddScore[r] * (modScore[r] * mcScore[r]);
+			return sum;
 		}
 	}
 
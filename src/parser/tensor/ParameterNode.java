@@ -36,8 +36,21 @@ public class ParameterNode implements Serializable {
 	public int[] featureBias;		// [feature template num - 1]
 	public double[][] param;		// [rank][feature Num]
 	public transient boolean[] isActive;	// [feature num], whether the feature is used
-	public transient FeatureVector[] dFV;	// [rank];
-	public transient double[] delta;
+	
+	// gradient, accumulated densely; gradIdx lists the touched features
+	public transient double[][] dG;			// [rank][feature num]
+	private transient int[] gradIdx;
+	private transient int gradNum;
+	private transient boolean[] inGrad;
+	
+	// scores of the repository feature vectors (see getCachedScore)
+	private transient volatile int version;
+	private transient FeatureDataItem[] scoreCache;
+	
+	// lazy regularization
+	private transient int step;
+	private transient int[] lastUpdate;		// [feature num]
+	private transient int[] touched;
 	
 	// adaGrad
 	private transient double[][] sg;	// [rank][feature num]
@@ -97,10 +110,7 @@ public class ParameterNode implements Serializable {
 		if (featureSize > 0) {
 			param = new double[rank][featureSize];
 			isActive = new boolean[featureSize];
-			dFV = new FeatureVector[rank];
-			delta = new double[featureSize];
-			for (int i = 0; i < rank; ++i)
-				dFV[i] = new FeatureVector(featureSize);
+			initGradient();
 			
 			switch (options.updateMode) {
 				case AdaGrad:
@@ -363,6 +373,78 @@ public class ParameterNode implements Serializable {
 		}
 	}
 	
+	// same structure and parameters, but separate gradient buffers
+	public ParameterNode createGradientNode() {
+		ParameterNode g = new ParameterNode(options, pipe, rank);
+		g.gamma = gamma;
+		g.lambda = lambda;
+		g.featureSize = featureSize;
+		g.featureBias = featureBias;
+		if (featureSize > 0) {
+			g.param = param;
+			g.isActive = isActive;
+			g.initGradient();
+		}
+		g.setNodeNum(nodeNum);
+		for (int i = 0; i < nodeNum; ++i)
+			g.node[i] = node[i].createGradientNode();
+		return g;
+	}
+	
+	private void initGradient() {
+		dG = new double[rank][featureSize];
+		gradIdx = new int[featureSize];
+		inGrad = new boolean[featureSize];
+		gradNum = 0;
+	}
+	
+	/**
+	 * Adds coeff * fv to the gradient of rank component r.
+	 */
+	public void addGradient(int r, FeatureVector fv, double coeff) {
+		if (coeff == 0)
+			return;
+		double[] d = dG[r];
+		for (int i = 0, L = fv.size(); i < L; ++i) {
+			double v = fv.value(i) * coeff;
+			if (v == 0)
+				continue;
+			int x = fv.x(i);
+			d[x] += v;
+			if (!inGrad[x]) {
+				inGrad[x] = true;
+				gradIdx[gradNum++] = x;
+			}
+		}
+	}
+	
+	private void clearGradient() {
+		for (int j = 0; j < gradNum; ++j) {
+			int x = gradIdx[j];
+			for (int r = 0; r < rank; ++r)
+				dG[r][x] = 0.0;
+			inGrad[x] = false;
+		}
+		gradNum = 0;
+	}
+	
+	public void mergeGradient(ParameterNode g) {
+		if (featureSize > 0) {
+			for (int j = 0; j < g.gradNum; ++j) {
+				int x = g.gradIdx[j];
+				for (int r = 0; r < rank; ++r)
+					dG[r][x] += g.dG[r][x];
+				if (!inGrad[x]) {
+					inGrad[x] = true;
+					gradIdx[gradNum++] = x;
+				}
+			}
+			g.clearGradient();
+		}
+		for (int i = 0; i < nodeNum; ++i)
+			node[i].mergeGradient(g.node[i]);
+	}
+	
 	public void setActiveFeature(FeatureVector fv) {
 		Utils.Assert(fv.nRows() == featureSize);
 		for (int i = 0, L = fv.size(); i < L; ++i)
@@ -394,6 +476,7 @@ public class ParameterNode implements Serializable {
 					total[r] = param[r].clone();
 				}
 			}
+			bumpVersion();
 		}
 		
 		for (int i = 0; i < nodeNum; ++i) {
@@ -403,90 +486,172 @@ public class ParameterNode implements Serializable {
 	
 	
 	public void batchUpdateAda() {
-		if (featureSize > 0) {
+		if (featureSize > 0 && options.lazyReg) {
+			lazyBatchUpdateAda();
+		}
+		else if (featureSize > 0) {
 			for (int r = 0; r < rank; ++r) {
-				FeatureVector dfv = dFV[r];
-				for (int i = 0, L = dfv.size(); i < L; ++i) {
-					int x = dfv.x(i);
-					if (isActive[x]) {
-						delta[x] += dfv.value(i);
-					}
-				}
+				double[] d = dG[r];
 				for (int i = 0; i < featureSize; ++i) {
 					if (!isActive[i])
 						continue;
-					double g = (delta[i] - lambda * param[r][i]) * (1 - gamma);
+					double g = (d[i] - lambda * param[r][i]) * (1 - gamma);
 					sg[r][i] += g * g;
 					param[r][i] += adaAlpha / Math.sqrt(sg[r][i] + adaEps) * g;
-					delta[i] = 0.0;
 				}
-				dFV[r].clear();
 			}
+			clearGradient();
 		}
+		if (featureSize > 0)
+			bumpVersion();
 		for (int i = 0; i < nodeNum; ++i) {
 			node[i].batchUpdateAda();
 		}
 	}
 	
-	public void updateAda() {
+	// only visits the features in the gradient; the decay skipped by the
+	// others is applied when they are touched again (see Parameters.applyDecay)
+	private void lazyBatchUpdateAda() {
+		if (lastUpdate == null) {
+			lastUpdate = new int[featureSize];
+			touched = new int[featureSize];
+		}
+		step++;
+		
+		int n = 0;
+		for (int j = 0; j < gradNum; ++j)
+			if (isActive[gradIdx[j]])
+				touched[n++] = gradIdx[j];
+		
+		for (int r = 0; r < rank; ++r) {
+			double[] d = dG[r];
+			for (int j = 0; j < n; ++j) {
+				int i = touched[j];
+				applyDecay(r, i, step - 1 - lastUpdate[i]);
+				double g = (d[i] - lambda * param[r][i]) * (1 - gamma);
+				sg[r][i] += g * g;
+				param[r][i] += adaAlpha / Math.sqrt(sg[r][i] + adaEps) * g;
+			}
+		}
+		clearGradient();
+		
+		for (int j = 0; j < n; ++j)
+			lastUpdate[touched[j]] = step;
+	}
+	
+	// k skipped steps, in chunks of 1, 1, 2, 4, ... with the rate refreshed
+	// from sg at the start of each (see Parameters.applyDecay)
+	private void applyDecay(int r, int i, int k) {
+		double s = lambda * (1 - gamma);
+		for (int done = 0; done < k; ) {
+			double p = param[r][i];
+			if (p == 0.0)
+				return;
+			
+			int c = Math.min(Math.max(done, 1), k - done);
+			double g = s * p;
+			double f = 1 - adaAlpha / Math.sqrt(sg[r][i] + g * g + adaEps) * s;
+			if (c == 1) {
+				sg[r][i] += g * g;
+				param[r][i] = p * f;
+			}
+			else {
+				double f2 = f * f;
+				double geo = f2 == 1.0 ? c : (1 - Math.pow(f2, c)) / (1 - f2);
+				sg[r][i] += g * g * geo;
+				param[r][i] = p * Math.pow(f, c);
+			}
+			done += c;
+		}
+	}
+	
+	public void flushRegularization() {
+		if (featureSize > 0 && lastUpdate != null) {
+			for (int i = 0; i < featureSize; ++i) {
+				if (!isActive[i])
+					continue;
+				for (int r = 0; r < rank; ++r)
+					applyDecay(r, i, step - lastUpdate[i]);
+				lastUpdate[i] = step;
+			}
+			bumpVersion();
+		}
+		for (int i = 0; i < nodeNum; ++i)
+			node[i].flushRegularization();
+	}
+	
+	/**
+	 * Applies the gradient of gn (this node or one made by
+	 * createGradientNode) and clears it. Takes no lock: with one gradient
+	 * node per thread, concurrent updates only race on param and sg.
+	 */
+	public void updateAda(ParameterNode gn) {
 		if (featureSize > 0) {
 			for (int r = 0; r < rank; ++r) {
-				FeatureVector dfv = dFV[r];
-				dfv.aggregate();
-				for (int i = 0, L = dfv.size(); i < L; ++i) {
-					int x = dfv.x(i);
-					double g = dfv.value(i) * (1 - gamma);
+				double[] d = gn.dG[r];
+				for (int j = 0; j < gn.gradNum; ++j) {
+					int x = gn.gradIdx[j];
+					double g = d[x] * (1 - gamma);
 					sg[r][x] += g * g;
 					param[r][x] += adaAlpha / Math.sqrt(sg[r][x] + adaEps) * g;
 				}
-				dFV[r].clear();
 			}
+			bumpVersion();
+			gn.clearGradient();
 		}
 		for (int i = 0; i < nodeNum; ++i) {
-			node[i].updateAda();
+			node[i].updateAda(gn.node[i]);
 		}
 	}
 	
-	public void updateMIRA(double alpha, int updCnt, double scale) {
+	// as updateAda(gn)
+	public void updateMIRA(double alpha, int updCnt, double scale, ParameterNode gn) {
 		
 		if (featureSize > 0) {
 			double lr = Math.min(alpha, C);
 			for (int r = 0; r < rank; ++r) {
-				FeatureVector dfv = dFV[r];
-				dfv.aggregate();
-				for (int i = 0, L = dfv.size(); i < L; ++i) {
-					int x = dfv.x(i);
-					double g = dfv.value(i) * (1 - gamma) * scale;
+				double[] d = gn.dG[r];
+				for (int j = 0; j < gn.gradNum; ++j) {
+					int x = gn.gradIdx[j];
+					double g = d[x] * (1 - gamma) * scale;
 					param[r][x] += lr * g;
 					total[r][x] += lr * updCnt * g;
 				}
-				dFV[r].clear();
 			}
+			bumpVersion();
+			gn.clearGradient();
 		}
 		for (int i = 0; i < nodeNum; ++i)
-			node[i].updateMIRA(alpha, updCnt, scale);
+			node[i].updateMIRA(alpha, updCnt, scale, gn.node[i]);
 	}
 	
 	public double gradientl2Norm() {
 		double norm = 0.0;
 		if (featureSize > 0) {
-			for (int r = 0; r < rank; ++r)
-				norm += dFV[r].Squaredl2NormUnsafe();
+			for (int r = 0; r < rank; ++r) {
+				double[] d = dG[r];
+				double sum = 0.0;
+				for (int j = 0; j < gradNum; ++j)
+					sum += d[gradIdx[j]] * d[gradIdx[j]];
+				norm += sum;
+			}
 		}
 		for (int i = 0; i < nodeNum; ++i)
 			norm += node[i].gradientl2Norm();
 		return norm;
 	}
 
+	// in place, param keeps its identity; back is allocated once
 	public void averageParameters(int T) {
 		if (featureSize > 0) {
-			back = param;
-			double[][] avg = new double[rank][featureSize];
+			if (back == null)
+				back = new double[rank][featureSize];
 			for (int i = 0; i < rank; ++i)
 				for (int j = 0; j < featureSize; ++j) {
-					avg[i][j] = (param[i][j] * (T+1) - total[i][j])/T;
+					back[i][j] = param[i][j];
+					param[i][j] = (back[i][j] * (T+1) - total[i][j])/T;
 				}
-			param = avg;
+			bumpVersion();
 		}
 		for (int i = 0; i < nodeNum; ++i)
 			node[i].averageParameters(T);
@@ -494,12 +659,51 @@ public class ParameterNode implements Serializable {
 	
 	public void unaverageParameters() {
 		if (featureSize > 0) {
-			param = back;
+			for (int i = 0; i < rank; ++i)
+				System.arraycopy(back[i], 0, param[i], 0, featureSize);
+			bumpVersion();
 		}
 		for (int i = 0; i < nodeNum; ++i)
 			node[i].unaverageParameters();
 	}
 	
+	// param is changed from outside (e.g. by LowRankParam)
+	public void invalidateScores() {
+		bumpVersion();
+		for (int i = 0; i < nodeNum; ++i)
+			node[i].invalidateScores();
+	}
+	
+	// called after param is written, so that a score computed from a
+	// half-written param is never cached under the new version; the
+	// increment is locked since Hogwild threads update concurrently
+	private synchronized void bumpVersion() {
+		version++;
+	}
+	
+	// The scores of fv (repository vector number key of keyNum) with every
+	// rank. They are shared by all sentences and recomputed only after param
+	// changes; a new array is made then, so tables holding the old scores
+	// are not affected.
+	public FeatureDataItem getCachedScore(int key, int keyNum, FeatureVector fv) {
+		FeatureDataItem[] cache = scoreCache;
+		if (cache == null || cache.length < keyNum) {
+			cache = new FeatureDataItem[keyNum];
+			scoreCache = cache;
+		}
+		int v = version;
+		FeatureDataItem item = cache[key];
+		if (item != null && item.version == v && item.fv == fv)
+			return item;
+		
+		double[] score = new double[rank];
+		for (int r = 0; r < rank; ++r)
+			score[r] = fv.dotProduct(param[r]);
+		item = new FeatureDataItem(fv, score, v);
+		cache[key] = item;
+		return item;
+	}
+	
 	public void setGamma(double gamma) {
 		this.gamma = gamma;
 		for (int i = 0; i < nodeNum; ++i)
@@ -1,6 +1,6 @@
 package parser.tensor;
 
-import java.util.Arrays;
+import gnu.trove.map.hash.TLongObjectHashMap;
 
 import parser.DependencyInstance;
 import parser.Options;
@@ -65,18 +65,12 @@ public class TMultiwayFeatureNode extends FeatureNode {
 			ParameterNode hpn = pn.node[2];
 			ParameterNode mpn = pn.node[3];
 			FeatureVector fv = pipe.fr.getContextFv(pp, np, inst.lang);
+			int key = pipe.fr.getContextKey(pp, np, inst.lang);
 			
 			Utils.Assert(hpn.rank == rank && mpn.rank == rank);
-			double[] headScore = new double[rank];
-			double[] modScore = new double[rank];
+			headContextData[i] = hpn.getCachedScore(key, pipe.fr.numContextFv(), fv);
+			modContextData[i] = mpn.getCachedScore(key, pipe.fr.numContextFv(), fv);
 			
-			for (int r = 0; r < rank; ++r) {
-				headScore[r] = fv.dotProduct(hpn.param[r]);
-				modScore[r] = fv.dotProduct(mpn.param[r]);
-			}
-			
-			headContextData[i] = new FeatureDataItem(fv, headScore);
-			modContextData[i] = new FeatureDataItem(fv, modScore);
 			
 			// pos
 			hpn = pn.node[0];
@@ -84,16 +78,8 @@ public class TMultiwayFeatureNode extends FeatureNode {
 			fv = pipe.fr.getPOSFv(p);
 			
 			Utils.Assert(hpn.rank == rank && mpn.rank == rank);
-			headScore = new double[rank];
-			modScore = new double[rank];
-			
-			for (int r = 0; r < rank; ++r) {
-				headScore[r] = fv.dotProduct(hpn.param[r]);
-				modScore[r] = fv.dotProduct(mpn.param[r]);
-			}
-			
-			headData[i] = new FeatureDataItem(fv, headScore);
-			modData[i] = new FeatureDataItem(fv, modScore);
+			headData[i] = hpn.getCachedScore(p, pipe.fr.numPOSFv(), fv);
+			modData[i] = mpn.getCachedScore(p, pipe.fr.numPOSFv(), fv);
 		}
 		
 		// direction and distance and typo
@@ -103,11 +89,8 @@ public class TMultiwayFeatureNode extends FeatureNode {
 		Utils.Assert(rank == dpn.rank);
 		for (int i = 0; i < 2 * d; ++i) {
 			FeatureVector fv = pipe.fr.getDDTypoFv(i, inst.lang);
-			double[] score = new double[rank];
-			for (int r = 0; r < rank; ++r) {
-				score[r] = fv.dotProduct(dpn.param[r]);
-			}
-			ddData[i] = new FeatureDataItem(fv, score);
+			FeatureDataItem item = dpn.getCachedScore(pipe.fr.getDDTypoKey(i, inst.lang), pipe.fr.numDDFv(), fv);
+			ddData[i] = item;
 		}
 		
 		// label
@@ -118,20 +101,12 @@ public class TMultiwayFeatureNode extends FeatureNode {
 			labelData = new FeatureDataItem[labelNum];
 			for (int i = 0; i < labelNum; ++i) {
 				FeatureVector fv = pipe.fr.getLabelFv(i);
-				double[] score = new double[rank];
-				for (int r = 0; r < rank; ++r) {
-					score[r] = fv.dotProduct(lpn.param[r]);
-				}
-				labelData[i] = new FeatureDataItem(fv, score);
+				labelData[i] = lpn.getCachedScore(i + 1, pipe.fr.numLabelFv(), fv);
 			}
 			
 			// empty label
 			FeatureVector fv = pipe.fr.getLabelFv(-1);
-			double[] score = new double[rank];
-			for (int r = 0; r < rank; ++r) {
-				score[r] = fv.dotProduct(lpn.param[r]);
-			}
-			emptyLabelData = new FeatureDataItem(fv, score);
+			emptyLabelData = lpn.getCachedScore(0, pipe.fr.numLabelFv(), fv);
 		}
 	}
 
@@ -162,17 +137,56 @@ public class TMultiwayFeatureNode extends FeatureNode {
 		double[] ddScore = ddData[binDist].score;
 		double[] lScore = label < 0 ? emptyLabelData.score : labelData[label].score;
 		
+		double[] tScore = getTypoScore(hp, mp, label, binDist, lang);
+		
+		if (options.lexical) 
+			return Utils.prodSum(lexScore, hcScore, mcScore, tScore, hScore, mScore, ddScore, lScore);
+		else
+			return Utils.prodSum(hcScore, mcScore, tScore, hScore, mScore, ddScore, lScore);
+	}
+	
+	@Override
+	public void getScores(double[] scores, boolean[] isPruned) {
+		// the typological part only depends on the POS pair and the distance
+		int n = inst.length;
+		int lang = inst.lang;
+		double[] lScore = emptyLabelData.score;
+		TLongObjectHashMap<double[]> typoCache = new TLongObjectHashMap<double[]>();
+		for (int h = 0; h < n; ++h)
+			for (int m = 1; m < n; ++m) 
+				if (h != m && (isPruned == null || !isPruned[h * n + m])) {
+					int hp = inst.postagids[h];
+					int mp = inst.postagids[m];
+					int binDist = pipe.ff.getBinnedDistance(h - m);
+					long key = ((long) hp << 40) | ((long) mp << 16) | binDist;
+					double[] tScore = typoCache.get(key);
+					if (tScore == null) {
+						tScore = getTypoScore(hp, mp, -1, binDist, lang);
+						typoCache.put(key, tScore);
+					}
+					
+					double[] hcScore = headContextData[h].score;
+					double[] mcScore = modContextData[m].score;
+					double[] hScore = headData[h].score;
+					double[] mScore = modData[m].score;
+					double[] ddScore = ddData[binDist].score;
+					if (options.lexical) {
+						double[] lexScore = Utils.dot(headLexicalData[h].score, modLexicalData[m].score);
+						scores[h * n + m] = Utils.prodSum(lexScore, hcScore, mcScore, tScore, hScore, mScore, ddScore, lScore);
+					}
+					else
+						scores[h * n + m] = Utils.prodSum(hcScore, mcScore, tScore, hScore, mScore, ddScore, lScore);
+				}
+	}
+	
+	private double[] getTypoScore(int hp, int mp, int label, int binDist, int lang) {
 		ParameterNode tpn = pn.node[4];
 		double[] tScore = new double[tpn.rank];
 		FeatureVector fv = pipe.ff.createAllTypoFeatures(hp, mp, label, binDist, lang, tpn.featureSize, tpn.featureBias);
 		for (int r = 0; r < tpn.rank; ++r) {
 			tScore[r] += fv.dotProduct(tpn.param[r]);
 		}
-		
-		if (options.lexical) 
-			return Utils.sum(Utils.dot(lexScore, hcScore, mcScore, tScore, hScore, mScore, ddScore, lScore));
-		else
-			return Utils.sum(Utils.dot(hcScore, mcScore, tScore, hScore, mScore, ddScore, lScore));
+		return tScore;
 	}
 
 	@Override
@@ -183,9 +197,6 @@ public class TMultiwayFeatureNode extends FeatureNode {
 		int binDist = pipe.ff.getBinnedDistance(h - m);
 		int lang = inst.lang;
 		
-		double[] v = new double[pn.rank];
-		Arrays.fill(v, val);
-
 		ParameterNode hcpn = pn.node[2];
 		ParameterNode mcpn = pn.node[3];
 		ParameterNode lpn = pn.node[6];
@@ -204,104 +215,51 @@ public class TMultiwayFeatureNode extends FeatureNode {
 		double[] mScore = modData[m].score;
 		double[] ddScore = ddData[binDist].score;
 		double[] lScore = label < 0 ? emptyLabelData.score : labelData[label].score;
+		FeatureVector lfv = label < 0 ? emptyLabelData.fv : labelData[label].fv;
 		
-		double[] tScore = new double[tpn.rank];
 		FeatureVector tfv = pipe.ff.createAllTypoFeatures(hp, mp, label, binDist, lang, tpn.featureSize, tpn.featureBias);
-		for (int r = 0; r < tpn.rank; ++r) {
-			tScore[r] += tfv.dotProduct(tpn.param[r]);
-		}
-
-		double[] lexScore = null;
-		if (options.lexical) {
-			int rank = pn.rank;
-			lexScore = new double[rank];
+		
+		// per-rank coefficients, multiplied in the order of Utils.dot(v, ...)
+		// and Utils.prodSum, which the previous code used
+		double sum = 0.0;
+		for (int r = 0; r < pn.rank; ++r) {
+			double t = tfv.dotProduct(tpn.param[r]);
+			double hc = hcScore[r], mc = mcScore[r];
+			double hs = hScore[r], ms = mScore[r], dd = ddScore[r], ls = lScore[r];
 			
-			double[] headLexicalScore = headLexicalData[h].score;
-			double[] modLexicalScore = modLexicalData[m].score;
-			for (int r = 0; r < rank; ++r) {
-				lexScore[r] += headLexicalScore[r] * modLexicalScore[r];
+			if (options.lexical) {
+				double hl = headLexicalData[h].score[r];
+				double ml = modLexicalData[m].score[r];
+				double lex = hl * ml;
+				
+				// update head/mod lexical
+				double tmp = val * hc * mc * hs * ms * dd * ls * t;
+				hlpn.addGradient(r, headLexicalData[h].fv, tmp * ml);
+				mlpn.addGradient(r, modLexicalData[m].fv, tmp * hl);
+				
+				hcpn.addGradient(r, headContextData[h].fv, val * lex * mc * hs * ms * dd * ls * t);
+				mcpn.addGradient(r, modContextData[m].fv, val * lex * hc * hs * ms * dd * ls * t);
+				hpn.addGradient(r, headData[h].fv, val * lex * mc * hc * ms * dd * ls * t);
+				mpn.addGradient(r, modData[m].fv, val * lex * hc * hs * mc * dd * ls * t);
+				lpn.addGradient(r, lfv, val * lex * hc * mc * hs * ms * dd * t);
+				dpn.addGradient(r, ddData[binDist].fv, val * lex * hc * mc * hs * ms * ls * t);
+				tpn.addGradient(r, tfv, val * lex * hc * mc * hs * ms * ls * dd);
+				
+				sum += lex * hc * mc * t * hs * ms * dd * ls;
 			}
-		
-			for (int r = 0; r < rank; ++r) {
-				double tmp = v[r] * hcScore[r] * mcScore[r] * hScore[r] * mScore[r] * ddScore[r] * lScore[r] * tScore[r];
-				// update head lexical
-				double dv = tmp * modLexicalScore[r];
-				hlpn.dFV[r].addEntries(headLexicalData[h].fv, dv);
-
-				// update mod lexical
-				dv = tmp * headLexicalScore[r];
-				mlpn.dFV[r].addEntries(modLexicalData[m].fv, dv);
+			else {
+				hcpn.addGradient(r, headContextData[h].fv, val * mc * hs * ms * dd * ls * t);
+				mcpn.addGradient(r, modContextData[m].fv, val * hc * hs * ms * dd * ls * t);
+				hpn.addGradient(r, headData[h].fv, val * mc * hc * ms * dd * ls * t);
+				mpn.addGradient(r, modData[m].fv, val * hc * hs * mc * dd * ls * t);
+				lpn.addGradient(r, lfv, val * hc * mc * hs * ms * dd * t);
+				dpn.addGradient(r, ddData[binDist].fv, val * hc * mc * hs * ms * ls * t);
+				tpn.addGradient(r, tfv, val * hc * mc * hs * ms * ls * dd);
+				
+				sum += hc * mc * t * hs * ms * dd * ls;
 			}
 		}
-
-		// head/mod context
-		int rank = pn.rank;
-		double[] g = new double[rank];
-		if (options.lexical)
-			g = Utils.dot_s(g, v, lexScore, mcScore, hScore, mScore, ddScore, lScore, tScore);
-		else
-			g = Utils.dot_s(g, v, mcScore, hScore, mScore, ddScore, lScore, tScore);
-		for (int r = 0; r < hcpn.rank; ++r) {
-			hcpn.dFV[r].addEntries(headContextData[h].fv, g[r]);
-		}
-
-		if (options.lexical)
-			g = Utils.dot_s(g, v, lexScore, hcScore, hScore, mScore, ddScore, lScore, tScore);
-		else
-			g = Utils.dot_s(g, v, hcScore, hScore, mScore, ddScore, lScore, tScore);
-		for (int r = 0; r < mcpn.rank; ++r) {
-			mcpn.dFV[r].addEntries(modContextData[m].fv, g[r]);
-		}
-		
-		// head/mod
-		if (options.lexical)
-			g = Utils.dot_s(g, v, lexScore, mcScore, hcScore, mScore, ddScore, lScore, tScore);
-		else
-			g = Utils.dot_s(g, v, mcScore, hcScore, mScore, ddScore, lScore, tScore);
-		for (int r = 0; r < hpn.rank; ++r) {
-			hpn.dFV[r].addEntries(headData[h].fv, g[r]);
-		}
-
-		if (options.lexical)
-			g = Utils.dot_s(g, v, lexScore, hcScore, hScore, mcScore, ddScore, lScore, tScore);
-		else
-			g = Utils.dot_s(g, v, hcScore, hScore, mcScore, ddScore, lScore, tScore);
-		for (int r = 0; r < mpn.rank; ++r) {
-			mpn.dFV[r].addEntries(modData[m].fv, g[r]);
-		}
-		
-		// label
-		if (options.lexical)
-			g = Utils.dot_s(g, v, lexScore, hcScore, mcScore, hScore, mScore, ddScore, tScore);
-		else
-			g = Utils.dot_s(g, v, hcScore, mcScore, hScore, mScore, ddScore, tScore);
-		for (int r = 0; r < lpn.rank; ++r) {
-			FeatureVector fv = label < 0 ? emptyLabelData.fv : labelData[label].fv;
-			lpn.dFV[r].addEntries(fv, g[r]);
-		}
-		
-		// dd
-		if (options.lexical)
-			g = Utils.dot_s(g, v, lexScore, hcScore, mcScore, hScore, mScore, lScore, tScore);
-		else
-			g = Utils.dot_s(g, v, hcScore, mcScore, hScore, mScore, lScore, tScore);
-		for (int r = 0; r < dpn.rank; ++r) {
-			dpn.dFV[r].addEntries(ddData[binDist].fv, g[r]);
-		}
-		
-		// typo
-		if (options.lexical)
-			g = Utils.dot_s(g, v, lexScore, hcScore, mcScore, hScore, mScore, lScore, ddScore);
-		else
-			g = Utils.dot_s(g, v, hcScore, mcScore, hScore, mScore, lScore, ddScore);
-		for (int r = 0; r < tpn.rank; ++r) {
-			tpn.dFV[r].addEntries(tfv, g[r]);
-		}
-
-		if (options.lexical) 
-			return Utils.sum(Utils.dot(lexScore, hcScore, mcScore, tScore, hScore, mScore, ddScore, lScore));
-		else
-			return Utils.sum(Utils.dot(hcScore, mcScore, tScore, hScore, mScore, ddScore, lScore));
+		return sum;
 	}
 
 }
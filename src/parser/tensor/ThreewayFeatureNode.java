@@ -1,7 +1,5 @@
 package parser.tensor;
 
-import java.util.Arrays;
-
 import parser.DependencyInstance;
 import parser.Options;
 import parser.TensorTransfer;
@@ -90,82 +88,82 @@ public class ThreewayFeatureNode extends FeatureNode {
 
 	@Override
 	public double getScore(int h, int m, int label) {
+		int binDist = pipe.ff.getBinnedDistance(h - m);
+		if (!options.learnLabel || label < 0)
+			return getArcScore(h, m, binDist);
+		
+		return Utils.prodSum(headData[h].score, modData[m].score, ddData[binDist].score,
+				labelData[label].score);
+	}
+	
+	// unlabeled score, multiplied in the order of getFactoredScores
+	private double getArcScore(int h, int m, int binDist) {
 		double[] headScore = headData[h].score;
 		double[] modScore = modData[m].score;
-		double[] ddScore = ddData[pipe.ff.getBinnedDistance(h - m)].score;
+		double[] ddScore = ddData[binDist].score;
 		
+		double sum = 0.0;
 		if (options.learnLabel) {
-			double[] labelScore = label < 0 ? emptyLabelData.score : labelData[label].score;
-			return Utils.sum(Utils.dot(headScore, modScore, ddScore, labelScore));
+			double[] labelScore = emptyLabelData.score;
+			for (int r = 0; r < headScore.length; ++r)
+				sum += headScore[r] * (ddScore[r] * labelScore[r]) * modScore[r];
 		}
 		else {
-			return Utils.sum(Utils.dot(headScore, modScore, ddScore));
+			for (int r = 0; r < headScore.length; ++r)
+				sum += headScore[r] * ddScore[r] * modScore[r];
 		}
+		return sum;
 	}
 	
+	@Override
+	public void getScores(double[] scores, boolean[] isPruned) {
+		int n = inst.length;
+		double[][] head = new double[n][];
+		double[][] mod = new double[n][];
+		for (int i = 0; i < n; ++i) {
+			head[i] = headData[i].score;
+			mod[i] = modData[i].score;
+		}
+		double[][] dd = new double[ddData.length][];
+		for (int i = 0; i < dd.length; ++i)
+			dd[i] = options.learnLabel ? Utils.dot(ddData[i].score, emptyLabelData.score) : ddData[i].score;
+		getFactoredScores(head, mod, dd, scores, isPruned);
+	}
+
 	@Override
 	public double addGradient(int h, int m, int label, double val, ParameterNode pn) {
 		// assume that dfv is already cleaned
 		
 		int binDist = pipe.ff.getBinnedDistance(h - m);
-		double[] v = new double[pn.rank];
-		Arrays.fill(v, val);
-		
-		double[] g = null; 
+		double[] headScore = headData[h].score;
+		double[] modScore = modData[m].score;
+		double[] ddScore = ddData[binDist].score;
+		FeatureDataItem labelItem = !options.learnLabel ? null
+				: label < 0 ? emptyLabelData : labelData[label];
 		
-		// update h
-		g = Utils.dot(v, modData[m].score, ddData[binDist].score);
-		if (options.learnLabel) {
-			double[] labelScore = label < 0 ? emptyLabelData.score : labelData[label].score;
-			g = Utils.dot(g, labelScore);
-		}
 		ParameterNode hpn = pn.node[0];
-		for (int r = 0; r < hpn.rank; ++r) {
-			hpn.dFV[r].addEntries(headData[h].fv, g[r]);
-		}
-		
-//		for (int r = 0; r < hpn.rank; ++r) {
-//			System.out.printf("%.4f ", g[r]);
-//		}
-//		try { System.in.read(); } catch (IOException e) { e.printStackTrace(); }
-		
-		// update m
-		g = Utils.dot(v, headData[h].score, ddData[binDist].score);
-		if (options.learnLabel) {
-			double[] labelScore = label < 0 ? emptyLabelData.score : labelData[label].score;
-			g = Utils.dot(g, labelScore);
-		}
 		ParameterNode mpn = pn.node[1];
-		for (int r = 0; r < mpn.rank; ++r) {
-			mpn.dFV[r].addEntries(modData[m].fv, g[r]);
-		}
-		
-		// update dd
-		g = Utils.dot(v, headData[h].score, modData[m].score);
-		if (options.learnLabel) {
-			double[] labelScore = label < 0 ? emptyLabelData.score : labelData[label].score;
-			g = Utils.dot(g, labelScore);
-		}
 		ParameterNode dpn = pn.node[2];
-		for (int r = 0; r < dpn.rank; ++r) {
-			dpn.dFV[r].addEntries(ddData[binDist].fv, g[r]);
-		}
+		ParameterNode lpn = options.learnLabel ? pn.node[3] : null;
 		
-		// update label
-		if (options.learnLabel) {
-			g = Utils.dot(v, headData[h].score, modData[m].score, ddData[binDist].score);
-			ParameterNode lpn = pn.node[3];
-			for (int r = 0; r < lpn.rank; ++r) {
-				lpn.dFV[r].addEntries(label < 0 ? emptyLabelData.fv : labelData[label].fv, g[r]);
-			}
+		// products in the order of Utils.dot(v, ...)
+		for (int r = 0; r < pn.rank; ++r) {
+			double l = options.learnLabel ? labelItem.score[r] : 1.0;
+			
+			// update h, m and dd
+			hpn.addGradient(r, headData[h].fv, val * modScore[r] * ddScore[r] * l);
+			mpn.addGradient(r, modData[m].fv, val * headScore[r] * ddScore[r] * l);
+			dpn.addGradient(r, ddData[binDist].fv, val * headScore[r] * modScore[r] * l);
+			
+			// update label
+			if (options.learnLabel)
+				lpn.addGradient(r, labelItem.fv, val * headScore[r] * modScore[r] * ddScore[r]);
 		}
 		
-		if (options.learnLabel) {
-			double[] labelScore = label < 0 ? emptyLabelData.score : labelData[label].score;
-			return Utils.sum(Utils.dot(headData[h].score, modData[m].score, ddData[binDist].score, labelScore));
-		}
-		else {
-			return Utils.sum(Utils.dot(headData[h].score, modData[m].score, ddData[binDist].score));
-		}
+		if (!options.learnLabel || label < 0)
+			return getArcScore(h, m, binDist);
+		
+		return Utils.prodSum(headData[h].score, modData[m].score, ddData[binDist].score,
+				labelData[label].score);
 	}
 }
@@ -0,0 +1,62 @@
+package utils;
+
+import java.util.Arrays;
+
+public class DenseWeightVector extends WeightVector {
+
+	private static final long serialVersionUID = 1L;
+	
+	double[] w;
+	
+	public DenseWeightVector(int size) {
+		super(size);
+		w = new double[size];
+	}
+	
+	// uses w itself, not a copy
+	public DenseWeightVector(double[] w) {
+		super(w.length);
+		this.w = w;
+	}
+
+	@Override
+	public double get(int i) {
+		return w[i];
+	}
+
+	@Override
+	public void set(int i, double v) {
+		w[i] = v;
+	}
+
+	@Override
+	public void add(int i, double v) {
+		w[i] += v;
+	}
+
+	@Override
+	public double dotProduct(FeatureVector fv) {
+		double sum = 0;
+		for (int i = 0; i < fv.size; ++i)
+			sum += fv.va[i] * w[fv.x[i]];
+		return sum;
+	}
+
+	@Override
+	public double dotProduct(FeatureVector fv, int start, int end) {
+		double sum = 0;
+		for (int i = start; i < end; ++i)
+			sum += fv.va[i] * w[fv.x[i]];
+		return sum;
+	}
+
+	@Override
+	public double squaredSum() {
+		return Utils.squaredSum(w);
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(w, 0.0);
+	}
+}
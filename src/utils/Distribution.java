@@ -34,6 +34,15 @@ public class Distribution {
 	TypologicalInfo typo;
 	
 	public Distribution(ArrayList<DependencyInstance> lstTrain, DependencyPipe pipe, Options options) {
+		this(pipe, options);
+		for (int i = 0, L = lstTrain.size(); i < L; ++i) {
+			addCount(lstTrain.get(i));
+		}
+		//normalize();
+	}
+	
+	// empty counts, to be filled by addCount
+	public Distribution(DependencyPipe pipe, Options options) {
 		this.options = options;
 		this.pipe = pipe;
 		typo = pipe.typo;
@@ -57,11 +66,6 @@ public class Distribution {
 		sourceClassTrigramSum = 0;
 		sourceFamilyBigramSum = 0;
 		sourceFamilyTrigramSum = 0;
-		
-		for (int i = 0, L = lstTrain.size(); i < L; ++i) {
-			addCount(lstTrain.get(i));
-		}
-		//normalize();
 	}
 	
 	public void addCount(DependencyInstance inst) {
@@ -1,6 +1,6 @@
 package utils;
 
-import gnu.trove.map.hash.TLongObjectHashMap;
+import java.util.Arrays;
 
 public class FeatureVector {
 	
@@ -75,6 +75,15 @@ public class FeatureVector {
 			addEntry(m.x[i], m.va[i] * coeff);
 	}
 	
+	// adds entries [start, end) of m
+	public void addEntries(FeatureVector m, int start, int end, double coeff) {
+		
+		if (coeff == 0 || end <= start) return;
+		
+		for (int i = start; i < end; ++i)
+			addEntry(m.x[i], m.va[i] * coeff);
+	}
+	
 	public void addEntriesOffset(FeatureVector m, int offset) {
 		addEntriesOffset(m, offset, 1.0);
 	}
@@ -99,19 +108,15 @@ public class FeatureVector {
 		return Math.sqrt(sum);
 	}
 	
-	private static double[] l2Vec;
+	// squared norm of the aggregated vector
 	public double Squaredl2NormUnsafe() {
 
-		if (l2Vec == null || l2Vec.length < nRows) {
-            l2Vec = new double[nRows];
-        }
+		FeatureScratch s = FeatureScratch.get();
+		int n = s.aggregate(this);
 		
 		double sum = 0;
-		for (int i = 0; i < size; ++i) l2Vec[x[i]] += va[i];
-		for (int i = 0; i < size; ++i) {
-			sum += l2Vec[x[i]] * l2Vec[x[i]];
-			l2Vec[x[i]] = 0;
-		}
+		for (int i = 0; i < n; ++i)
+			sum += s.va[i] * s.va[i];
 		return sum;
 		
 	}
@@ -155,31 +160,24 @@ public class FeatureVector {
 	public int x(int i) { return x[i]; }
 	public double value(int i) { return va[i]; }
 	
+	/**
+	 * Sums the entries with the same index. Returns false (and leaves the
+	 * vector unchanged) if there are none; otherwise keeps the non-zero sums
+	 * in order of first occurrence.
+	 */
 	public boolean aggregate() {
 		
 		if (size == 0) return false;
 		
-		boolean aggregated = false;
-		
-		//HashMap<Long, MatrixEntry> table = new HashMap<Long, MatrixEntry>();
-		TLongObjectHashMap<Entry> table = new TLongObjectHashMap<Entry>();
-		for (int i = 0; i < size; ++i) {
-			int id = x[i];
-			Entry item = table.get(id);
-			if (item != null) {
-				item.value += va[i];
-				aggregated = true;
-			} else
-				table.put(id, new Entry(id, va[i]));
-		}
-		
-		if (!aggregated) return false;
+		FeatureScratch s = FeatureScratch.get();
+		int n = s.aggregate(this);
+		if (n == size) return false;
 		
 		int p = 0;
-		for (Entry e : table.valueCollection()) {
-			if (e.value != 0) {
-				x[p] = e.x;
-				va[p] = e.value;
+		for (int i = 0; i < n; ++i) {
+			if (s.va[i] != 0) {
+				x[p] = s.x[i];
+				va[p] = s.va[i];
 				++p;
 			}
 		}
@@ -187,22 +185,18 @@ public class FeatureVector {
 		return true;
 	}
 	
-	private static double[] aggVec;
+	// like aggregate, but also drops sums close to zero
 	public void aggregateUnsafe() {
-		if (aggVec == null || aggVec.length < nRows) {
-			aggVec = new double[nRows];
-        }
 		
-		for (int i = 0; i < size; ++i) 
-			aggVec[x[i]] += va[i];
+		FeatureScratch s = FeatureScratch.get();
+		int n = s.aggregate(this);
 		
 		int p = 0;
-		for (int i = 0; i < size; ++i) {
-			if (Math.abs(aggVec[x[i]]) > 1e-8) {
-				x[p] = x[i];
-				va[p] = aggVec[x[i]];
+		for (int i = 0; i < n; ++i) {
+			if (Math.abs(s.va[i]) > 1e-8) {
+				x[p] = s.x[i];
+				va[p] = s.va[i];
 				++p;
-				aggVec[x[i]] = 0.0;
 			}
 		}
 		size = p;
@@ -225,24 +219,11 @@ public class FeatureVector {
 		return dotProduct(this, _y, offset);
 	}
 	
-	private static double[] dpVec;			 //non-sparse vector repr for vector dot product
 	public static double dotProduct(FeatureVector _x, FeatureVector _y) {
 		
 		assert(_x.nRows == _y.nRows);		
 		
-		if (dpVec == null || dpVec.length < _y.nRows) dpVec = new double[_y.nRows];
-		
-		for (int i = 0; i < _y.size; ++i)
-			dpVec[_y.x[i]] += _y.va[i];
-		
-		double sum = 0;
-		for (int i = 0; i < _x.size; ++i)
-			sum += _x.va[i] * dpVec[_x.x[i]];
-
-		for (int i = 0; i < _y.size; ++i)
-			dpVec[_y.x[i]] = 0;
-		
-		return sum;
+		return FeatureScratch.get().dotProduct(_x, _y);
 	}
 	
 	public static double dotProduct(FeatureVector _x, double[] _y) {
@@ -270,14 +251,133 @@ public class FeatureVector {
 	}
 }
 
-class Entry {
-	int x;
-	double value;
-	
-	public Entry(int x, double value) 
-	{
-		this.x = x;
-		this.value = value;
+/**
+ * Per-thread scratch space of the FeatureVector operations. Vectors with
+ * up to DENSE_ROWS rows are aggregated in a dense array, larger ones by
+ * sorting their entries.
+ */
+class FeatureScratch {
+	
+	static final int DENSE_ROWS = 1 << 20;
+	
+	private static final ThreadLocal<FeatureScratch> scratch = new ThreadLocal<FeatureScratch>() {
+		@Override
+		protected FeatureScratch initialValue() {
+			return new FeatureScratch();
+		}
+	};
+	
+	static FeatureScratch get() {
+		return scratch.get();
+	}
+	
+	// result of aggregate
+	int[] x = new int[64];
+	double[] va = new double[64];
+	
+	private double[] dense = new double[0];
+	private boolean[] seen = new boolean[0];
+	private long[] keys = new long[64];
+	private int[] gx = new int[64];
+	private double[] gva = new double[64];
+	
+	/**
+	 * Sums the values of each distinct index of fv into (x, va), in order of
+	 * first occurrence. Each sum is taken in insertion order. Returns the
+	 * number of distinct indices.
+	 */
+	int aggregate(FeatureVector fv) {
+		int size = fv.size;
+		if (x.length < size) {
+			int cap = Math.max(size, x.length * 2);
+			x = new int[cap];
+			va = new double[cap];
+			keys = new long[cap];
+			gx = new int[cap];
+			gva = new double[cap];
+		}
+		
+		int n = 0;
+		if (fv.nRows <= DENSE_ROWS) {
+			if (dense.length < fv.nRows) {
+				dense = new double[fv.nRows];
+				seen = new boolean[fv.nRows];
+			}
+			for (int i = 0; i < size; ++i)
+				dense[fv.x[i]] += fv.va[i];
+			for (int i = 0; i < size; ++i) {
+				int k = fv.x[i];
+				if (!seen[k]) {
+					seen[k] = true;
+					x[n] = k;
+					va[n] = dense[k];
+					++n;
+				}
+			}
+			for (int j = 0; j < n; ++j) {
+				dense[x[j]] = 0.0;
+				seen[x[j]] = false;
+			}
+		}
+		else {
+			// by index, then by position
+			for (int i = 0; i < size; ++i)
+				keys[i] = ((long) fv.x[i] << 32) | i;
+			Arrays.sort(keys, 0, size);
+			for (int i = 0; i < size; ) {
+				int k = (int) (keys[i] >>> 32);
+				int first = (int) keys[i];
+				double sum = 0.0;
+				for (; i < size && (int) (keys[i] >>> 32) == k; ++i)
+					sum += fv.va[(int) keys[i]];
+				gx[n] = k;
+				gva[n] = sum;
+				keys[n] = ((long) first << 32) | n;
+				++n;
+			}
+			// back to the order of first occurrence
+			Arrays.sort(keys, 0, n);
+			for (int j = 0; j < n; ++j) {
+				int g = (int) keys[j];
+				x[j] = gx[g];
+				va[j] = gva[g];
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Sum over the entries of a (in order) of its value times the aggregated
+	 * value of b at the same index.
+	 */
+	double dotProduct(FeatureVector a, FeatureVector b) {
+		double sum = 0;
+		if (b.nRows <= DENSE_ROWS) {
+			if (dense.length < b.nRows) {
+				dense = new double[b.nRows];
+				seen = new boolean[b.nRows];
+			}
+			for (int i = 0; i < b.size; ++i)
+				dense[b.x[i]] += b.va[i];
+			for (int i = 0; i < a.size; ++i)
+				sum += a.va[i] * dense[a.x[i]];
+			for (int i = 0; i < b.size; ++i)
+				dense[b.x[i]] = 0.0;
+		}
+		else {
+			int n = aggregate(b);
+			for (int j = 0; j < n; ++j)
+				keys[j] = ((long) x[j] << 32) | j;
+			Arrays.sort(keys, 0, n);
+			for (int i = 0; i < a.size; ++i) {
+				int k = a.x[i];
+				int p = Arrays.binarySearch(keys, 0, n, (long) k << 32);
+				if (p < 0)
+					p = -p - 1;
+				double v = p < n && (int) (keys[p] >>> 32) == k ? va[(int) keys[p]] : 0.0;
+				sum += a.va[i] * v;
+			}
+		}
+		return sum;
 	}
 }
-
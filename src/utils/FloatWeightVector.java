@@ -0,0 +1,59 @@
+package utils;
+
+import java.util.Arrays;
+
+public class FloatWeightVector extends WeightVector {
+
+	private static final long serialVersionUID = 1L;
+	
+	float[] w;
+	
+	public FloatWeightVector(int size) {
+		super(size);
+		w = new float[size];
+	}
+
+	@Override
+	public double get(int i) {
+		return w[i];
+	}
+
+	@Override
+	public void set(int i, double v) {
+		w[i] = (float) v;
+	}
+
+	@Override
+	public void add(int i, double v) {
+		w[i] = (float) (w[i] + v);
+	}
+
+	@Override
+	public double dotProduct(FeatureVector fv) {
+		double sum = 0;
+		for (int i = 0; i < fv.size; ++i)
+			sum += fv.va[i] * w[fv.x[i]];
+		return sum;
+	}
+
+	@Override
+	public double dotProduct(FeatureVector fv, int start, int end) {
+		double sum = 0;
+		for (int i = start; i < end; ++i)
+			sum += fv.va[i] * w[fv.x[i]];
+		return sum;
+	}
+
+	@Override
+	public double squaredSum() {
+		double sum = 0;
+		for (int i = 0; i < size; ++i)
+			sum += (double) w[i] * w[i];
+		return sum;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(w, 0.0f);
+	}
+}
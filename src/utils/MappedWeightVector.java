@@ -0,0 +1,239 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Off-heap weights in a memory-mapped file. The file starts with a header
+ * of MAGIC, VERSION, the size, a checksum of the weights and the kind of
+ * store ("params", "sg", ...), then holds the doubles.
+ *
+ * A serialized store is only a reference to its file: saving a model
+ * stamps the checksum of the current weights into the header and writes
+ * the path and checksum. Loading the model maps the file read-only, so
+ * inference JVMs on one host share the page cache, and checks that the
+ * weights are still the saved ones. The first update after loading (a
+ * resumed run) remaps the file read-write. While the weights are being
+ * written the header checksum is 0, so a model whose file has been
+ * trained on since it was saved fails to load instead of reading other
+ * weights.
+ */
+public class MappedWeightVector extends WeightVector {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int MAGIC = 0x54545756;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 64;			// magic, version, size, checksum, kind
+	static final int CHECKSUM_POS = 16;
+	static final int KIND_POS = 24;
+
+	static final int SEGMENT_BITS = 27;			// 2^27 doubles (1GB) per mapping
+	static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+
+	private String kind;
+
+	private transient File file;
+	private transient MappedByteBuffer header;
+	private transient MappedByteBuffer[] maps;
+	private transient DoubleBuffer[] segs;
+	private transient volatile boolean writing;	// the header checksum is 0
+
+	/**
+	 * A new store of zeros in file, which must be empty unless reset is set.
+	 */
+	public MappedWeightVector(int size, File file, String kind, boolean reset) throws IOException {
+		super(size);
+		this.file = file;
+		this.kind = kind;
+		if (file.length() > 0 && !reset)
+			Utils.ThrowException("weight file " + file + " exists; use weights-reset:true to overwrite it");
+		map(MapMode.READ_WRITE, true);
+		writing = true;
+	}
+
+	private void map(MapMode mode, boolean create) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, mode == MapMode.READ_ONLY ? "r" : "rw")) {
+			if (create) {
+				raf.setLength(0);
+				raf.setLength(HEADER_BYTES + (long) size * 8);
+			}
+			else if (raf.length() != HEADER_BYTES + (long) size * 8)
+				Utils.ThrowException("weight file " + file + " does not hold " + size + " weights");
+
+			FileChannel channel = raf.getChannel();
+			header = channel.map(mode, 0, HEADER_BYTES);
+			if (create)
+				writeHeader();
+			else
+				checkHeader();
+
+			int n = (int) (((long) size + SEGMENT_MASK) >>> SEGMENT_BITS);
+			maps = new MappedByteBuffer[n];
+			segs = new DoubleBuffer[n];
+			for (int i = 0; i < n; ++i) {
+				long st = (long) i << SEGMENT_BITS;
+				long len = Math.min((long) size - st, 1L << SEGMENT_BITS);
+				maps[i] = channel.map(mode, HEADER_BYTES + st * 8, len * 8);
+				segs[i] = maps[i].asDoubleBuffer();
+			}
+		}
+	}
+
+	private void writeHeader() {
+		byte[] k = kind.getBytes(StandardCharsets.UTF_8);
+		Utils.Assert(k.length <= HEADER_BYTES - KIND_POS - 4);
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		header.putLong(8, size);
+		header.putLong(CHECKSUM_POS, 0L);
+		header.putInt(KIND_POS, k.length);
+		for (int i = 0; i < k.length; ++i)
+			header.put(KIND_POS + 4 + i, k[i]);
+		header.force();
+	}
+
+	private void checkHeader() {
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+			Utils.ThrowException(file + " is not a weight file");
+		if (header.getLong(8) != size)
+			Utils.ThrowException("weight file " + file + " does not hold " + size + " weights");
+		int len = header.getInt(KIND_POS);
+		byte[] k = new byte[len >= 0 && len <= HEADER_BYTES - KIND_POS - 4 ? len : 0];
+		for (int i = 0; i < k.length; ++i)
+			k[i] = header.get(KIND_POS + 4 + i);
+		String fileKind = new String(k, StandardCharsets.UTF_8);
+		if (!fileKind.equals(kind))
+			Utils.ThrowException("weight file " + file + " holds " + fileKind + ", not " + kind);
+	}
+
+	/**
+	 * Marks the weights as being written, remapping a loaded store
+	 * read-write first.
+	 */
+	@Override
+	public void openForWrite() {
+		if (!writing)
+			beginWrite();
+	}
+
+	private synchronized void beginWrite() {
+		if (writing)
+			return;
+		if (header.isReadOnly()) {
+			try {
+				map(MapMode.READ_WRITE, false);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		header.putLong(CHECKSUM_POS, 0L);
+		header.force();
+		writing = true;
+	}
+
+	// writes the weights through and records their checksum in the header
+	private synchronized long stamp() {
+		if (!writing)
+			return header.getLong(CHECKSUM_POS);
+
+		for (MappedByteBuffer m : maps)
+			m.force();
+		CRC32 crc = new CRC32();
+		for (MappedByteBuffer m : maps) {
+			ByteBuffer b = m.duplicate();
+			b.clear();
+			crc.update(b);
+		}
+		long sum = crc.getValue() | 1L << 32;		// never 0
+		header.putLong(CHECKSUM_POS, sum);
+		header.force();
+		writing = false;
+		return sum;
+	}
+
+	@Override
+	public double get(int i) {
+		return segs[i >>> SEGMENT_BITS].get(i & SEGMENT_MASK);
+	}
+
+	@Override
+	public void set(int i, double v) {
+		segs[i >>> SEGMENT_BITS].put(i & SEGMENT_MASK, v);
+	}
+
+	@Override
+	public void add(int i, double v) {
+		DoubleBuffer seg = segs[i >>> SEGMENT_BITS];
+		int p = i & SEGMENT_MASK;
+		seg.put(p, seg.get(p) + v);
+	}
+
+	@Override
+	public double dotProduct(FeatureVector fv) {
+		double sum = 0;
+		for (int i = 0; i < fv.size; ++i) {
+			int x = fv.x[i];
+			sum += fv.va[i] * segs[x >>> SEGMENT_BITS].get(x & SEGMENT_MASK);
+		}
+		return sum;
+	}
+
+	@Override
+	public double dotProduct(FeatureVector fv, int start, int end) {
+		double sum = 0;
+		for (int i = start; i < end; ++i) {
+			int x = fv.x[i];
+			sum += fv.va[i] * segs[x >>> SEGMENT_BITS].get(x & SEGMENT_MASK);
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredSum() {
+		double sum = 0;
+		for (DoubleBuffer seg : segs)
+			for (int i = 0, L = seg.capacity(); i < L; ++i)
+				sum += seg.get(i) * seg.get(i);
+		return sum;
+	}
+
+	@Override
+	public void clear() {
+		double[] zeros = new double[8192];
+		for (DoubleBuffer seg : segs) {
+			DoubleBuffer b = seg.duplicate();
+			b.clear();
+			while (b.hasRemaining())
+				b.put(zeros, 0, Math.min(zeros.length, b.remaining()));
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		long sum = stamp();
+		out.writeUTF(file.getAbsolutePath());
+		out.writeLong(sum);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		file = new File(in.readUTF());
+		long sum = in.readLong();
+		if (!file.isFile())
+			Utils.ThrowException("missing weight file " + file);
+		map(MapMode.READ_ONLY, false);
+		if (header.getLong(CHECKSUM_POS) != sum)
+			Utils.ThrowException("weight file " + file + " has changed since the model was saved");
+	}
+}
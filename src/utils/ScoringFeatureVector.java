@@ -0,0 +1,36 @@
+package utils;
+
+/**
+ * A FeatureVector that does not store its entries. Each added entry is
+ * multiplied with the weights right away, so only the score is kept.
+ */
+public class ScoringFeatureVector extends FeatureVector {
+	
+	WeightVector w;
+	double score = 0;
+	
+	public ScoringFeatureVector(WeightVector w) {
+		super(w.size, 0);
+		this.w = w;
+	}
+	
+	@Override
+	public void addEntry(int _x, double _value) {
+		if (_value == 0) return;
+		score += _value * w.get(_x);
+	}
+	
+	@Override
+	public void addEntry(int _x) {
+		score += w.get(_x);
+	}
+	
+	@Override
+	public void clear() {
+		score = 0;
+	}
+	
+	public double score() {
+		return score;
+	}
+}
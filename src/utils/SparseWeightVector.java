@@ -0,0 +1,183 @@
+package utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Open-addressing map from weight index to a float value. Only the touched
+// slots are stored. Writers of existing slots share the read lock of
+// resize, so none of them writes into a table that is being copied;
+// inserting a new slot is synchronized, and growing the table takes the
+// write lock. Readers take no lock and may see the old table.
+public class SparseWeightVector extends WeightVector {
+
+	private static final long serialVersionUID = 1L;
+	
+	static final int EMPTY = -1;
+	static final double LOAD = 0.6;
+	
+	private volatile SparseTable table;
+	private int count;
+	private final ReentrantReadWriteLock resize = new ReentrantReadWriteLock();
+	
+	public SparseWeightVector(int size) {
+		super(size);
+		table = new SparseTable(16);
+		count = 0;
+	}
+	
+	public int numEntries() {
+		return count;
+	}
+
+	@Override
+	public double get(int i) {
+		SparseTable t = table;
+		int p = t.find(i);
+		return p < 0 ? 0.0 : t.values[p];
+	}
+
+	@Override
+	public void set(int i, double v) {
+		resize.readLock().lock();
+		try {
+			SparseTable t = table;
+			int p = t.find(i);
+			if (p >= 0) {
+				t.values[p] = (float) v;
+				return;
+			}
+		} finally {
+			resize.readLock().unlock();
+		}
+		if (v != 0.0)
+			insert(i, v, true);
+	}
+
+	@Override
+	public void add(int i, double v) {
+		resize.readLock().lock();
+		try {
+			SparseTable t = table;
+			int p = t.find(i);
+			if (p >= 0) {
+				t.values[p] = (float) (t.values[p] + v);
+				return;
+			}
+		} finally {
+			resize.readLock().unlock();
+		}
+		if (v != 0.0)
+			insert(i, v, false);
+	}
+	
+	private synchronized void insert(int i, double v, boolean overwrite) {
+		SparseTable t = table;
+		int p = t.find(i);
+		if (p >= 0) {
+			t.values[p] = (float) (overwrite ? v : t.values[p] + v);
+			return;
+		}
+		if (count + 1 > t.keys.length * LOAD) {
+			resize.writeLock().lock();
+			try {
+				t = t.grow();
+				table = t;
+			} finally {
+				resize.writeLock().unlock();
+			}
+		}
+		t.put(i, (float) v);
+		count++;
+	}
+
+	@Override
+	public double dotProduct(FeatureVector fv) {
+		SparseTable t = table;
+		double sum = 0;
+		for (int i = 0; i < fv.size; ++i) {
+			int p = t.find(fv.x[i]);
+			if (p >= 0)
+				sum += fv.va[i] * t.values[p];
+		}
+		return sum;
+	}
+
+	@Override
+	public double dotProduct(FeatureVector fv, int start, int end) {
+		SparseTable t = table;
+		double sum = 0;
+		for (int i = start; i < end; ++i) {
+			int p = t.find(fv.x[i]);
+			if (p >= 0)
+				sum += fv.va[i] * t.values[p];
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredSum() {
+		SparseTable t = table;
+		double sum = 0;
+		for (int p = 0; p < t.keys.length; ++p)
+			if (t.keys[p] != EMPTY)
+				sum += (double) t.values[p] * t.values[p];
+		return sum;
+	}
+
+	@Override
+	public synchronized void clear() {
+		resize.writeLock().lock();
+		try {
+			table = new SparseTable(16);
+			count = 0;
+		} finally {
+			resize.writeLock().unlock();
+		}
+	}
+}
+
+class SparseTable implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	final int[] keys;
+	final float[] values;
+	final int mask, shift;
+	
+	SparseTable(int capacity) {
+		keys = new int[capacity];
+		values = new float[capacity];
+		mask = capacity - 1;
+		shift = Integer.numberOfLeadingZeros(capacity) + 1;
+		Arrays.fill(keys, SparseWeightVector.EMPTY);
+	}
+	
+	int find(int key) {
+		int p = (key * 0x9E3779B1) >>> shift;
+		while (true) {
+			int k = keys[p];
+			if (k == key)
+				return p;
+			if (k == SparseWeightVector.EMPTY)
+				return -1;
+			p = (p + 1) & mask;
+		}
+	}
+	
+	void put(int key, float value) {
+		int p = (key * 0x9E3779B1) >>> shift;
+		while (keys[p] != SparseWeightVector.EMPTY)
+			p = (p + 1) & mask;
+		values[p] = value;
+		keys[p] = key;
+	}
+	
+	SparseTable grow() {
+		SparseTable t = new SparseTable(keys.length * 2);
+		for (int p = 0; p < keys.length; ++p)
+			if (keys[p] != SparseWeightVector.EMPTY)
+				t.put(keys[p], values[p]);
+		return t;
+	}
+}
@@ -129,6 +129,70 @@ public final class Utils {
 		return ret;
 	}
 	
+	public static double[] dot_s(double[] ret, double[] a, double[] b) {
+		for (int i = 0, N = ret.length; i < N; ++i)
+			ret[i] = a[i] * b[i];
+		return ret;
+	}
+	
+	public static double[] dot_s(double[] ret, double[] a, double[] b, double[] c) {
+		for (int i = 0, N = ret.length; i < N; ++i)
+			ret[i] = a[i] * b[i] * c[i];
+		return ret;
+	}
+	
+	/**
+	 * sum(dot(vecs...)) without allocating the elementwise product. The
+	 * products and the sum are taken in the same order as dot and sum, so
+	 * the result is identical.
+	 */
+	public static double prodSum(double[] a, double[] b, double[] c)
+	{
+		double sum = 0.0;
+		for (int i = 0, N = a.length; i < N; ++i)
+			sum += a[i] * b[i] * c[i];
+		return sum;
+	}
+	
+	public static double prodSum(double[] a, double[] b, double[] c, double[] d)
+	{
+		double sum = 0.0;
+		for (int i = 0, N = a.length; i < N; ++i)
+			sum += a[i] * b[i] * c[i] * d[i];
+		return sum;
+	}
+	
+	public static double prodSum(double[] a, double[] b, double[] c, double[] d,
+			double[] e)
+	{
+		double sum = 0.0;
+		for (int i = 0, N = a.length; i < N; ++i)
+			sum += a[i] * b[i] * c[i] * d[i] * e[i];
+		return sum;
+	}
+	
+	public static double prodSum(double[] a, double[] b, double[] c, double[] d,
+			double[] e, double[] f)
+	{
+		double sum = 0.0;
+		for (int i = 0, N = a.length; i < N; ++i)
+			sum += a[i] * b[i] * c[i] * d[i] * e[i] * f[i];
+		return sum;
+	}
+	
+	public static double prodSum(double[]... vecs)
+	{
+		Utils.Assert(vecs.length > 0);
+		double sum = 0.0;
+		for (int i = 0, N = vecs[0].length; i < N; ++i) {
+			double r = 1.0;
+			for (double[] vec : vecs)
+				r *= vec[i];
+			sum += r;
+		}
+		return sum;
+	}
+	
 	public static double sum(double[] vec) {
 		double sum = 0.0;
 		for (int i = 0, L = vec.length; i < L; ++i)
@@ -0,0 +1,72 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import parser.Options;
+
+/**
+ * Storage of the hashed sparse weights (and the per-weight statistics of
+ * the learners) used by Parameters. See Options.WeightStore.
+ */
+public abstract class WeightVector implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	
+	public final int size;
+	
+	public WeightVector(int size) {
+		this.size = size;
+	}
+	
+	// name is the file of a mapped store in the weight directory (which only
+	// replaces an existing one with options.weightsReset), null for a
+	// temporary file
+	public static WeightVector createWeightVector(Options options, int size, String name) {
+		switch (options.weightStore) {
+			case Dense:
+				return new DenseWeightVector(size);
+			case Float:
+				return new FloatWeightVector(size);
+			case Sparse:
+				return new SparseWeightVector(size);
+			case Mapped:
+				try {
+					File dir = new File(options.weightDir != null ? options.weightDir 
+							: options.modelFile + ".weights");
+					dir.mkdirs();
+					if (name == null) {
+						File file = File.createTempFile("scratch", ".bin", dir);
+						file.deleteOnExit();
+						return new MappedWeightVector(size, file, "scratch", true);
+					}
+					return new MappedWeightVector(size, new File(dir, name + ".bin"), name,
+							options.weightsReset);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			default:
+				Utils.ThrowException("unsupported weight store");
+				return null;
+		}
+	}
+	
+	public abstract double get(int i);
+	
+	public abstract void set(int i, double v);
+	
+	public abstract void add(int i, double v);
+	
+	public abstract double dotProduct(FeatureVector fv);
+	
+	// dot product with entries [start, end) of fv
+	public abstract double dotProduct(FeatureVector fv, int start, int end);
+	
+	public abstract double squaredSum();
+	
+	public abstract void clear();
+	
+	// called before the weights are updated; see MappedWeightVector
+	public void openForWrite() {}
+}